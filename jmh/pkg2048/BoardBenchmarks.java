@@ -0,0 +1,130 @@
+package pkg2048;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the Board primitives over the same seeded corpus as
+ * Benchmark's board.* cases. Each invocation covers every board of the
+ * corpus, so scores are operations per microsecond per board.
+ *
+ * @author Jimmy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(BoardBenchmarks.CORPUS)
+public class BoardBenchmarks {
+
+    static final int CORPUS = 4096;
+
+    @Param("2048")
+    long seed;
+
+    long[] boards;
+    final long[] out = new long[32];
+    final float[] probs = new float[32];
+    final int[] moves = new int[4];
+
+    @Setup
+    public void setup() {
+        boards = AllocationCheck.corpus(seed, CORPUS);
+    }
+
+    @Benchmark
+    public long shift() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.shift(b, 0) ^ Board.shift(b, 1) ^ Board.shift(b, 2)
+                    ^ Board.shift(b, 3);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long shiftAll() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.shiftAll(b, out, 0) + out[2];
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long transpose() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.transpose(b);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long insert() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.insert(b, (b & 1) == 0, (int) (b >>> 60) % 2);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long dead() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.dead(b) ? 1 : 0;
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long emptySquares() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.emptySquares(b);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long emptyMask() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.emptyMask(b);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long spawnSuccessors() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.spawnSuccessors(b, out, probs, 0) + out[0];
+        }
+        return x;
+    }
+
+    @Benchmark
+    public long moveSuccessors() {
+        long x = 0;
+        for (long b : boards) {
+            x += Board.moveSuccessors(b, out, moves, 0) + out[0];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,67 @@
+package pkg2048;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of each AI's leaf heuristic over Benchmark's board
+ * corpus, one board at a time and through its batched leaf evaluation.
+ *
+ * @author Jimmy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(HeuristicBenchmarks.CORPUS)
+public class HeuristicBenchmarks {
+
+    static final int CORPUS = 4096;
+
+    @Param({"expectimax", "improved"})
+    String ai;
+
+    @Param("2048")
+    long seed;
+
+    Expectimax player;
+    long[] boards;
+    final float[] out = new float[CORPUS];
+    final int[] rows = new int[LeafEvaluator.ROWS];
+
+    @Setup
+    public void setup() {
+        player = (Expectimax) Simulator.aiFactory(ai)
+                .apply(RandomSource.seeded(seed));
+        boards = AllocationCheck.corpus(seed, CORPUS);
+    }
+
+    @Benchmark
+    public double heuristic() {
+        double x = 0;
+        for (long b : boards) {
+            x += player.heuristic(b);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public float heuristics() {
+        player.heuristics(boards, boards.length, out, rows);
+        return out[boards.length - 1];
+    }
+}
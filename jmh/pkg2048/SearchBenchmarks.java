@@ -0,0 +1,71 @@
+package pkg2048;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of nextMove over the early, mid and late game corpora of
+ * Benchmark's *.nextMove.* cases, reporting the average time per move.
+ *
+ * @author Jimmy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(SearchBenchmarks.CORPUS)
+public class SearchBenchmarks {
+
+    static final int CORPUS = 8;
+
+    @Param({"expectimax", "improved"})
+    String ai;
+
+    @Param({"early", "mid", "late"})
+    String phase;
+
+    @Param("2048")
+    long seed;
+
+    AI player;
+    long[] boards;
+
+    @Setup
+    public void setup() {
+        player = Simulator.aiFactory(ai).apply(RandomSource.seeded(seed));
+        switch (phase) {
+            case "early":
+                boards = pkg2048.Benchmark.corpus(seed, CORPUS, 5, 6);
+                break;
+            case "mid":
+                boards = pkg2048.Benchmark.corpus(seed + 1, CORPUS, 8, 9);
+                break;
+            default:
+                boards = pkg2048.Benchmark.corpus(seed + 2, CORPUS, 10, 11);
+                break;
+        }
+    }
+
+    @Benchmark
+    public long nextMove() {
+        long x = 0;
+        for (long b : boards) {
+            x += player.nextMove(b);
+        }
+        return x;
+    }
+}
@@ -11,32 +11,43 @@ public interface AI {
     public int nextMove(long b);
 
     public static AI randomPlayer() {
-        return b -> (int) (Math.random() * 4);
+        return randomPlayer(RandomSource.unseeded());
     }
 
-    public static AI naivePlayer() {
-        return b -> {
-            long[] score = {
-                emptySquares(shift(b,0)),
-                emptySquares(shift(b,1)),
-                emptySquares(shift(b,2)),
-                emptySquares(shift(b,3))
-            };
+    public static AI randomPlayer(RandomSource rng) {
+        return b -> rng.nextInt(4);
+    }
 
-            int maxInd = 0;
+    public static AI naivePlayer() {
+        return naivePlayer(RandomSource.unseeded());
+    }
 
-            if (score[0] == score[1]
-                    && score[1] == score[2]
-                    && score[2] == score[3]) {
-                return randomPlayer().nextMove(b);
+    /**
+     * Plays the legal move that leaves the most empty cells, the first of
+     * them on ties, or a random legal move if they all leave the same
+     * number. Its buffers are reused across calls, so each thread needs
+     * its own player.
+     */
+    public static AI naivePlayer(RandomSource rng) {
+        long[] boards = new long[4];
+        int[] moves = new int[4];
+        return b -> {
+            int n = moveSuccessors(b, boards, moves, 0);
+            if (n == 0) {
+                return rng.nextInt(4);
             }
-
-            for (int i = 0; i < 3; i++) {
-                if (score[i] > score[maxInd] || shift(b, maxInd) == b) {
-                    maxInd = i;
+            int best = 0;
+            int bestEmpty = emptySquares(boards[0]);
+            boolean tie = true;
+            for (int i = 1; i < n; i++) {
+                int empty = emptySquares(boards[i]);
+                tie &= empty == bestEmpty;
+                if (empty > bestEmpty) {
+                    best = i;
+                    bestEmpty = empty;
                 }
             }
-            return maxInd;
+            return moves[tie ? rng.nextInt(n) : best];
         };
     }
 }
@@ -0,0 +1,99 @@
+package pkg2048;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static pkg2048.Board.*;
+
+/**
+ * Verifies that the Board queries and expectimax recursion used during
+ * search allocate nothing, by reading the current thread's allocated byte
+ * counter around a fixed, seeded workload. Exits non-zero on failure.
+ *
+ * @author Jimmy
+ */
+public class AllocationCheck {
+
+    static final long SEED = 2048;
+    static final int POSITIONS = 256;
+
+    static volatile float sink;
+    // caller-owned buffers for the bulk Board queries
+    static final long[] successors = new long[32];
+    static final float[] probs = new float[32];
+    static final int[] moves = new int[4];
+
+    /**
+     * Plays seeded random games and returns the positions visited.
+     */
+    static long[] corpus(long seed, int n) {
+        Random rng = new Random(seed);
+        long[] boards = new long[n];
+        long b = 0;
+        for (int i = 0; i < n; i++) {
+            if (b == 0 || dead(b)) {
+                b = insert(insert(0, true, rng.nextInt(16)),
+                        true, rng.nextInt(15));
+            }
+            boards[i] = b;
+            long b2 = shift(b, rng.nextInt(4));
+            if (b2 != b) {
+                b = insert(b2, rng.nextDouble() < 0.9,
+                        rng.nextInt(emptySquares(b2)));
+            }
+        }
+        return boards;
+    }
+
+    static float workload(long[] boards, Expectimax ai,
+            SearchContext ctx) {
+        float sink = 0;
+        for (long b : boards) {
+            sink += emptySquares(b);
+            sink += score(b, 0);
+            sink += ai.heuristic(b);
+            sink += dead(b) ? 1 : 0;
+            sink += Long.bitCount(emptyMask(b));
+            sink += spawnSuccessors(b, successors, probs, 0);
+            sink += moveSuccessors(b, successors, moves, 0);
+            sink += ai.scoreMoveNode(b, 1.0f, 0, ctx);
+        }
+        return sink;
+    }
+
+    public static long allocatedBytes(Expectimax ai) {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        long[] boards = corpus(SEED, POSITIONS);
+        // the table nextMove searches through
+        SearchContext ctx = new SearchContext(ai.table());
+        ai.probThresh = 0.0001f;
+        ai.depthLimit = 2;
+        ai.cacheLimit = 2;
+        for (int i = 0; i < 20; i++) {
+            workload(boards, ai, ctx);
+        }
+        long id = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(id);
+        sink = workload(boards, ai, ctx);
+        long after = bean.getThreadAllocatedBytes(id);
+        // calibrate away the bean's own bookkeeping
+        long overhead = bean.getThreadAllocatedBytes(id) - after;
+        return Math.max(0, after - before - overhead);
+    }
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        for (Expectimax ai :
+                new Expectimax[]{new Expectimax(), new ImprovedExpectimax()}) {
+            long bytes = allocatedBytes(ai);
+            System.out.println(ai.getClass().getSimpleName() + ": "
+                    + bytes + " bytes allocated");
+            ok &= bytes == 0;
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,601 @@
+package pkg2048;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static pkg2048.Board.*;
+
+/**
+ * Headless benchmark suite for the Board primitives, the heuristics and
+ * full move search, run over seeded position corpora so numbers are
+ * comparable between runs.
+ *
+ * The JMH suite in jmh/, built by the Maven build into
+ * target/benchmarks.jar, covers the Board, heuristic and nextMove cases
+ * with proper forking and dead-code handling; this runner remains for
+ * machines without the build and for the cases JMH doesn't cover, such
+ * as startup and the node counts of table.*.
+ *
+ * Each benchmark is warmed up, then timed over several iterations; results
+ * are printed and written as JSON. Usage:
+ *
+ *   java pkg2048.Benchmark [-seed n] [-iterations n] [-out file] [filter]
+ *
+ * where filter is a substring of the benchmark names to run. The
+ * leaves.*.vector benchmarks only run where LeafEvaluator.load finds the
+ * Vector API evaluator.
+ *
+ * @author Jimmy
+ */
+public class Benchmark {
+
+    public interface Workload {
+        /**
+         * Runs one pass and returns a value depending on all the work done,
+         * so the JIT cannot discard it.
+         */
+        public double run();
+    }
+
+    static final class Result {
+        final String name;
+        final String unit;
+        final double mean;
+        final double error;
+
+        Result(String name, String unit, double mean, double error) {
+            this.name = name;
+            this.unit = unit;
+            this.mean = mean;
+            this.error = error;
+        }
+    }
+
+    static volatile double sink;
+
+    final List<Result> results = new ArrayList<>();
+    final String filter;
+    final int iterations;
+
+    public Benchmark(String filter, int iterations) {
+        this.filter = filter;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Times workload and records its throughput, counting opsPerRun
+     * operations per call.
+     */
+    public void throughput(String name, long opsPerRun, Workload workload) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double[] samples = sample(workload, 1_000_000_000L / 4);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = opsPerRun / samples[i];
+        }
+        record(name, "ops/s", samples);
+    }
+
+    /**
+     * Times workload and records the average latency of each of its
+     * opsPerRun operations.
+     */
+    public void latency(String name, long opsPerRun, Workload workload) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double[] samples = sample(workload, 0);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = samples[i] * 1000 / opsPerRun;
+        }
+        record(name, "ms/op", samples);
+    }
+
+    /**
+     * Records a value measured elsewhere, such as a node count.
+     */
+    public void value(String name, String unit, double value) {
+        if (name.contains(filter)) {
+            record(name, unit, new double[]{value});
+        }
+    }
+
+    /**
+     * Returns whether any benchmark named with the given prefix could pass
+     * the filter, to skip expensive setup.
+     */
+    boolean selected(String prefix) {
+        return prefix.contains(filter) || filter.startsWith(prefix);
+    }
+
+    /**
+     * Returns seconds per call of workload for each iteration, repeating
+     * calls within an iteration until minNanos have passed.
+     */
+    double[] sample(Workload workload, long minNanos) {
+        for (int i = 0; i < Math.max(1, iterations / 2); i++) {
+            sink = workload.run();
+        }
+        double[] samples = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            int calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                sink = workload.run();
+                calls++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < minNanos);
+            samples[i] = elapsed / 1e9 / calls;
+        }
+        return samples;
+    }
+
+    void record(String name, String unit, double[] samples) {
+        double mean = 0;
+        for (double s : samples) {
+            mean += s;
+        }
+        mean /= samples.length;
+        double var = 0;
+        for (double s : samples) {
+            var += (s - mean) * (s - mean);
+        }
+        double error = samples.length > 1
+                ? Math.sqrt(var / (samples.length - 1)) : 0;
+        results.add(new Result(name, unit, mean, error));
+        System.out.println(String.format(Locale.ROOT,
+                "%-40s %16.3f +- %.3f %s", name, mean, error, unit));
+    }
+
+    public void writeJson(Writer out, long seed) throws IOException {
+        out.write("{\"seed\": " + seed + ", \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.write(String.format(Locale.ROOT,
+                    "%s\n  {\"name\": \"%s\", \"unit\": \"%s\", "
+                    + "\"mean\": %.6f, \"error\": %.6f}",
+                    i == 0 ? "" : ",", r.name, r.unit, r.mean, r.error));
+        }
+        out.write("\n]}\n");
+    }
+
+    /**
+     * Plays a seeded game with a shallow ImprovedExpectimax and returns
+     * positions from it whose largest tile has a rank in [minRank, maxRank].
+     */
+    static long[] corpus(long seed, int n, int minRank, int maxRank) {
+        Random rng = new Random(seed);
+        ImprovedExpectimax ai = new ImprovedExpectimax();
+        ai.probThresh = 0.001f;
+        ai.depthLimit = 2;
+        ai.cacheLimit = 2;
+        long[] boards = new long[n];
+        int count = 0;
+        long b = 0;
+        while (count < n) {
+            if (b == 0 || dead(b)) {
+                b = insert(insert(0, true, rng.nextInt(16)),
+                        true, rng.nextInt(15));
+            }
+            int rank = GameState.maxRank(b);
+            if (rank >= minRank && rank <= maxRank && rng.nextInt(4) == 0) {
+                boards[count++] = b;
+            }
+            if (rank > maxRank) {
+                b = 0;
+                continue;
+            }
+            long b2 = shift(b, ai.findBestMove(b));
+            if (b2 != b) {
+                b = insert(b2, rng.nextDouble() < 0.9,
+                        rng.nextInt(emptySquares(b2)));
+            }
+        }
+        return boards;
+    }
+
+    void boardBenchmarks(long[] boards) {
+        throughput("board.shift", 4L * boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += shift(b, 0) ^ shift(b, 1) ^ shift(b, 2) ^ shift(b, 3);
+            }
+            return x;
+        });
+        throughput("board.shiftAll", boards.length, () -> {
+            long[] out = new long[4];
+            long x = 0;
+            for (long b : boards) {
+                x += shiftAll(b, out, 0) + out[2];
+            }
+            return x;
+        });
+        throughput("board.transpose", boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += transpose(b);
+            }
+            return x;
+        });
+        throughput("board.insert", boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += insert(b, (b & 1) == 0, (int) (b >>> 60) % 2);
+            }
+            return x;
+        });
+        throughput("board.dead", boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += dead(b) ? 1 : 0;
+            }
+            return x;
+        });
+        throughput("board.emptySquares", boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += emptySquares(b);
+            }
+            return x;
+        });
+        throughput("board.emptyMask", boards.length, () -> {
+            long x = 0;
+            for (long b : boards) {
+                x += emptyMask(b);
+            }
+            return x;
+        });
+        throughput("board.spawnSuccessors", boards.length, () -> {
+            long[] out = new long[32];
+            float[] probs = new float[32];
+            long x = 0;
+            for (long b : boards) {
+                x += spawnSuccessors(b, out, probs, 0) + out[0];
+            }
+            return x;
+        });
+        throughput("board.moveSuccessors", boards.length, () -> {
+            long[] out = new long[4];
+            int[] moves = new int[4];
+            long x = 0;
+            for (long b : boards) {
+                x += moveSuccessors(b, out, moves, 0) + out[0];
+            }
+            return x;
+        });
+    }
+
+    void heuristicBenchmarks(long[] boards) {
+        Expectimax[] ais = {new Expectimax(), new ImprovedExpectimax()};
+        for (Expectimax ai : ais) {
+            throughput(ai.getClass().getSimpleName() + ".heuristic",
+                    boards.length, () -> {
+                double x = 0;
+                for (long b : boards) {
+                    x += ai.heuristic(b);
+                }
+                return x;
+            });
+        }
+    }
+
+    /**
+     * Compares evaluating leaves in frontier-sized batches with the scalar
+     * and the loaded LeafEvaluator, and nextMove scoring leaves one
+     * scoreMoveNode call at a time against scoring them in batches with
+     * each evaluator.
+     */
+    void leafBenchmarks(long[] boards, long[][] phases, String[] names) {
+        ImprovedExpectimax heur = new ImprovedExpectimax();
+        float[] out = new float[SearchContext.FRONTIER];
+        int[] rows = new int[LeafEvaluator.ROWS];
+        long[] batch = new long[SearchContext.FRONTIER];
+        String vector = Expectimax.LEAVES == LeafEvaluator.SCALAR
+                ? null : "vector";
+        for (String path : new String[]{"scalar", vector}) {
+            if (path == null) {
+                continue;
+            }
+            LeafEvaluator leaves = path.equals("scalar")
+                    ? LeafEvaluator.SCALAR : Expectimax.LEAVES;
+            throughput("leaves.evaluate." + path, boards.length, () -> {
+                double x = 0;
+                for (int i = 0; i < boards.length; i += batch.length) {
+                    int n = Math.min(batch.length, boards.length - i);
+                    System.arraycopy(boards, i, batch, 0, n);
+                    leaves.sumLines(heur.heuristicTable, 0, batch, n, out,
+                            rows);
+                    x += out[n - 1];
+                }
+                return x;
+            });
+        }
+        for (int p = 1; p < phases.length; p++) {
+            long[] phase = phases[p];
+            for (String path : new String[]{"recursive", "scalar", vector}) {
+                if (path == null) {
+                    continue;
+                }
+                ImprovedExpectimax ai = new ImprovedExpectimax();
+                ai.setBatchLeaves(!path.equals("recursive"));
+                if (path.equals("scalar")) {
+                    ai.setLeafEvaluator(LeafEvaluator.SCALAR);
+                }
+                latency("leaves." + path + "." + names[p], phase.length,
+                        () -> {
+                    long x = 0;
+                    for (long b : phase) {
+                        x += ai.nextMove(b);
+                    }
+                    return x;
+                });
+            }
+        }
+    }
+
+    void searchBenchmarks(long[][] phases, String[] names) {
+        for (int p = 0; p < phases.length; p++) {
+            long[] boards = phases[p];
+            for (Expectimax ai :
+                    new Expectimax[]{new Expectimax(), new ImprovedExpectimax()}) {
+                latency(ai.getClass().getSimpleName() + ".nextMove."
+                        + names[p], boards.length, () -> {
+                    long x = 0;
+                    for (long b : boards) {
+                        x += ai.nextMove(b);
+                    }
+                    return x;
+                });
+            }
+        }
+    }
+
+    /**
+     * Measures how search below the root scales from 1 to all cores.
+     */
+    void scalingBenchmarks(long[] boards) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int p = 1; ; p = Math.min(2 * p, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(p);
+            ImprovedExpectimax ai = new ImprovedExpectimax();
+            ai.setPool(pool);
+            ai.setParallelSplit(2, 0.01f);
+            latency("ImprovedExpectimax.nextMove.parallel.p" + p,
+                    boards.length, () -> {
+                long x = 0;
+                for (long b : boards) {
+                    x += ai.nextMove(b);
+                }
+                return x;
+            });
+            pool.shutdown();
+            if (p == cores) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Measures MonteCarlo playouts per second on one thread, guided and
+     * random, then across the pool from 1 to all cores, and its nextMove
+     * latency at the default budget.
+     */
+    void monteCarloBenchmarks(long[] boards, long[][] phases, String[] names) {
+        if (!selected("MonteCarlo.")) {
+            return;
+        }
+        // playouts start after a move, so from a board with an empty cell
+        long[] starts = new long[256];
+        int n = 0;
+        for (int i = 0; n < starts.length; i++) {
+            long b = boards[i % boards.length];
+            int legal = legalMoves(b);
+            if (legal != 0) {
+                starts[n++] = shift(b, Integer.numberOfTrailingZeros(legal));
+            }
+        }
+        for (boolean guided : new boolean[]{true, false}) {
+            throughput("MonteCarlo.playout." + (guided ? "guided" : "random"),
+                    starts.length, () -> {
+                long x = 0;
+                for (int i = 0; i < starts.length; i++) {
+                    x += MonteCarlo.playout(starts[i], MonteCarlo.mix(i),
+                            guided);
+                }
+                return x;
+            });
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        long b = phases[0][0];
+        int playouts = 512;
+        for (int p = 1; ; p = Math.min(2 * p, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(p);
+            MonteCarlo ai = new MonteCarlo(RandomSource.seeded(p));
+            ai.setPool(pool);
+            ai.setBudget(0, playouts);
+            throughput("MonteCarlo.playouts.p" + p,
+                    (long) Integer.bitCount(legalMoves(b)) * playouts,
+                    () -> ai.nextMove(b));
+            pool.shutdown();
+            if (p == cores) {
+                break;
+            }
+        }
+        for (int p = 0; p < phases.length; p++) {
+            long[] phase = phases[p];
+            MonteCarlo ai = new MonteCarlo(RandomSource.seeded(p));
+            latency("MonteCarlo.nextMove." + names[p], phase.length, () -> {
+                long x = 0;
+                for (long pos : phase) {
+                    x += ai.nextMove(pos);
+                }
+                return x;
+            });
+        }
+    }
+
+    /**
+     * Compares chance node pruning against the full expansion on each
+     * phase: nextMove latency and, per configuration, how often it picks
+     * the same move and the mean relative error of the best root score.
+     */
+    void pruningBenchmarks(long[][] phases, String[] names) {
+        if (!selected("pruning.")) {
+            return;
+        }
+        String[] configs = {"full", "star1", "sample", "star1+sample"};
+        for (int p = 0; p < phases.length; p++) {
+            long[] boards = phases[p];
+            int[] refMoves = new int[boards.length];
+            float[] refScores = new float[boards.length];
+            for (String config : configs) {
+                ImprovedExpectimax ai = new ImprovedExpectimax();
+                ai.setStar1(config.startsWith("star1"));
+                if (config.endsWith("sample")) {
+                    ai.setSampling(8, 4);
+                }
+                String name = "pruning." + config + "." + names[p];
+                latency(name, boards.length, () -> {
+                    long x = 0;
+                    for (long b : boards) {
+                        x += ai.nextMove(b);
+                    }
+                    return x;
+                });
+                int agree = 0;
+                double error = 0;
+                for (int i = 0; i < boards.length; i++) {
+                    int move = ai.nextMove(boards[i]);
+                    float score = ai.rootScores[move];
+                    if (config.equals("full")) {
+                        refMoves[i] = move;
+                        refScores[i] = score;
+                    }
+                    agree += move == refMoves[i] ? 1 : 0;
+                    error += Math.abs(score - refScores[i])
+                            / Math.abs(refScores[i]);
+                }
+                if (!config.equals("full")) {
+                    value(name + ".sameMove", "%", 100.0 * agree / boards.length);
+                    value(name + ".scoreError", "%",
+                            100 * error / boards.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays the first moves of a seeded game with a counting table, keyed
+     * on raw and on canonical boards and cleared every move, and keyed on
+     * canonical boards and kept for the whole game. Records hit and
+     * collision rates and nodes searched per move.
+     */
+    void tableBenchmarks(long seed, int moves) {
+        if (!selected("table.")) {
+            return;
+        }
+        String[] configs = {"raw", "perMove", "persistent"};
+        for (String config : configs) {
+            ImprovedExpectimax ai = new ImprovedExpectimax() {
+                @Override
+                protected TranspositionTable newTable() {
+                    return new ConcurrentTranspositionTable(
+                            ConcurrentTranspositionTable.DEFAULT_BITS, true);
+                }
+            };
+            ai.setCanonicalKeys(!config.equals("raw"));
+            ai.setPersistentTable(config.equals("persistent"));
+            GameState game = new GameState(RandomSource.seeded(seed));
+            long nodes = 0;
+            int played = 0;
+            for (; played < moves && !game.isLost(); played++) {
+                game.move(ai.nextMove(game.board()));
+                for (SearchContext ctx : ai.contexts) {
+                    nodes += ctx.nodes;
+                }
+            }
+            TableStats stats = ai.table().stats();
+            String name = "table." + config;
+            value(name + ".hitRate", "%", 100 * stats.hitRate());
+            value(name + ".collisionRate", "%", 100 * stats.collisionRate());
+            value(name + ".nodesPerMove", "nodes", (double) nodes / Math.max(1, played));
+        }
+    }
+
+    /**
+     * Records how long the first and second AI of each kind take to
+     * construct and to make their first move, and how long building the
+     * heuristic table from scratch takes. Only meaningful as the first
+     * benchmark of a fresh JVM; run twice with -Dpkg2048.tableCache=dir to
+     * measure a cold start that maps the tables from disk.
+     */
+    void startupBenchmarks(long b) {
+        if (!selected("startup.")) {
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            String name = (i < 2 ? "Expectimax" : "ImprovedExpectimax")
+                    + (i % 2 == 0 ? ".first" : ".second");
+            long start = System.nanoTime();
+            Expectimax ai = i < 2 ? new Expectimax() : new ImprovedExpectimax();
+            long constructed = System.nanoTime();
+            ai.nextMove(b);
+            long moved = System.nanoTime();
+            value("startup." + name + ".construct", "ms",
+                    (constructed - start) / 1e6);
+            value("startup." + name + ".firstMove", "ms",
+                    (moved - constructed) / 1e6);
+            if (i % 2 == 1) {
+                start = System.nanoTime();
+                TableCache.build(ai::heuristicRow);
+                value("startup." + ai.getClass().getSimpleName()
+                        + ".buildTable", "ms", (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 2048;
+        int iterations = 5;
+        String out = "bench_output.json";
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "-out": out = args[++i]; break;
+                default: filter = args[i];
+            }
+        }
+
+        Benchmark bench = new Benchmark(filter, iterations);
+        bench.startupBenchmarks(0x1033132402360289L);
+        long[] boards = AllocationCheck.corpus(seed, 4096);
+        String[] names = {"early", "mid", "late"};
+        long[][] phases = {
+            corpus(seed, 8, 5, 6),
+            corpus(seed + 1, 8, 8, 9),
+            corpus(seed + 2, 8, 10, 11)};
+
+        bench.boardBenchmarks(boards);
+        bench.heuristicBenchmarks(boards);
+        bench.leafBenchmarks(boards, phases, names);
+        bench.searchBenchmarks(phases, names);
+        bench.scalingBenchmarks(phases[1]);
+        bench.monteCarloBenchmarks(boards, phases, names);
+        bench.pruningBenchmarks(phases, names);
+        bench.tableBenchmarks(seed, 300);
+
+        try (Writer w = new FileWriter(out)) {
+            bench.writeJson(w, seed);
+        }
+    }
+}
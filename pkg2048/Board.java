@@ -15,16 +15,20 @@ public class Board {
     public static final int[] R_SHIFT_TABLE = new int[1 << 16];
     public static final int[] L_SHIFT_TABLE = new int[1 << 16];
     public static final int[] ROW_SCORE_TABLE = new int[1 << 16];
-    public static final byte[] OPEN_COUNT_TABLE = new byte[1 << 16];
+    // indexed by a column packed top-to-bottom into a row
+    public static final long[] U_SHIFT_TABLE = new long[1 << 16];
+    public static final long[] D_SHIFT_TABLE = new long[1 << 16];
     public static final int ROW_MASK = 0xFFFF;
     public static final long COL_MASK = 0x000F000F000F000FL;
+    public static final long NIBBLE_LOW_BITS = 0x1111111111111111L;
 
     static {
         for (int x = 0; x < 1 << 16; x++) {
             R_SHIFT_TABLE[x] = reverse(shiftLeft(reverse(x)));
             L_SHIFT_TABLE[x] = shiftLeft(x);
             ROW_SCORE_TABLE[x] = rowScore(x);
-            OPEN_COUNT_TABLE[x] = countOpen(x);
+            U_SHIFT_TABLE[x] = rowToCol(L_SHIFT_TABLE[x]);
+            D_SHIFT_TABLE[x] = rowToCol(R_SHIFT_TABLE[x]);
         }
     }
 
@@ -53,15 +57,9 @@ public class Board {
         return (l | (l << 12) | (l << 24) | (l << 36)) & COL_MASK;
     }
 
-    private static byte countOpen(int r) {
-        int[] tiles = tilesFromRow(r);
-        byte sum = 0;
-        for (int tile : tiles) {
-            if (tile == 0) {
-                sum++;
-            }
-        }
-        return sum;
+    private static int colToRow(long c) {
+        c &= COL_MASK;
+        return (int) (c | (c >>> 12) | (c >>> 24) | (c >>> 36)) & ROW_MASK;
     }
 
     private static int shiftLeft(int r) {
@@ -104,6 +102,14 @@ public class Board {
         return ans;
     }
 
+    private static long shiftBoardCols(long b, long[] table) {
+        long col4 = table[colToRow(b)];
+        long col3 = table[colToRow(b >>> 4)] << 4;
+        long col2 = table[colToRow(b >>> 8)] << 8;
+        long col1 = table[colToRow(b >>> 12)] << 12;
+        return col1 | col2 | col3 | col4;
+    }
+
     private static long shiftBoardRight(long b) {
         return shiftBoard(b, R_SHIFT_TABLE);
     }
@@ -113,11 +119,11 @@ public class Board {
     }
 
     private static long shiftBoardUp(long b) {
-        return transpose(shiftBoardLeft(transpose(b)));
+        return shiftBoardCols(b, U_SHIFT_TABLE);
     }
 
     private static long shiftBoardDown(long b) {
-        return transpose(shiftBoardRight(transpose(b)));
+        return shiftBoardCols(b, D_SHIFT_TABLE);
     }
     
     public static final long shift(long b, int i) {
@@ -139,29 +145,235 @@ public class Board {
         return b2;
     }
 
+    /**
+     * Writes shift(b, 0..3) to out[off..off+3] in a single pass over the
+     * rows and columns, and returns a mask with bit i set if move i is
+     * legal.
+     */
+    public static final int shiftAll(long b, long[] out, int off) {
+        long left = 0, right = 0, down = 0, up = 0;
+        for (int i = 0; i < 64; i += 16) {
+            int row = (int) (b >>> i) & ROW_MASK;
+            left |= ((long) L_SHIFT_TABLE[row]) << i;
+            right |= ((long) R_SHIFT_TABLE[row]) << i;
+        }
+        for (int i = 0; i < 16; i += 4) {
+            int col = colToRow(b >>> i);
+            down |= D_SHIFT_TABLE[col] << i;
+            up |= U_SHIFT_TABLE[col] << i;
+        }
+        out[off] = left;
+        out[off + 1] = right;
+        out[off + 2] = down;
+        out[off + 3] = up;
+        return (left != b ? 1 : 0) | (right != b ? 2 : 0)
+                | (down != b ? 4 : 0) | (up != b ? 8 : 0);
+    }
+
+    /**
+     * Returns a mask with bit i set if move i changes b.
+     */
+    public static final int legalMoves(long b) {
+        int mask = 0;
+        for (int i = 0; i < 64; i += 16) {
+            int row = (int) (b >>> i) & ROW_MASK;
+            if (L_SHIFT_TABLE[row] != row) {
+                mask |= 1;
+            }
+            if (R_SHIFT_TABLE[row] != row) {
+                mask |= 2;
+            }
+        }
+        for (int i = 0; i < 16; i += 4) {
+            // a column moves down/up exactly when its packed row moves
+            // right/left
+            int col = colToRow(b >>> i);
+            if (R_SHIFT_TABLE[col] != col) {
+                mask |= 4;
+            }
+            if (L_SHIFT_TABLE[col] != col) {
+                mask |= 8;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Reverses the tiles within each row.
+     */
+    public static final long mirror(long b) {
+        return ((b & 0xF000F000F000F000L) >>> 12)
+                | ((b & 0x0F000F000F000F00L) >>> 4)
+                | ((b & 0x00F000F000F000F0L) << 4)
+                | ((b & 0x000F000F000F000FL) << 12);
+    }
+
+    /**
+     * Reverses the order of the rows.
+     */
+    public static final long flip(long b) {
+        b = (b >>> 32) | (b << 32);
+        return ((b >>> 16) & 0x0000FFFF0000FFFFL)
+                | ((b & 0x0000FFFF0000FFFFL) << 16);
+    }
+
+    /**
+     * Applies one of the 8 symmetries of the board: bit 2 of t transposes,
+     * then bit 0 mirrors and bit 1 flips.
+     */
+    public static final long transform(long b, int t) {
+        if ((t & 4) != 0) {
+            b = transpose(b);
+        }
+        if ((t & 1) != 0) {
+            b = mirror(b);
+        }
+        if ((t & 2) != 0) {
+            b = flip(b);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the smallest of the 8 symmetric images of b, which is the same
+     * for every board in its symmetry class.
+     */
+    public static final long canonical(long b) {
+        long t = transpose(b);
+        long m = mirror(b);
+        long mt = mirror(t);
+        return Math.min(
+                Math.min(Math.min(b, m), Math.min(flip(b), flip(m))),
+                Math.min(Math.min(t, mt), Math.min(flip(t), flip(mt))));
+    }
+
+    /**
+     * Returns the t for which transform(b, t) == canonical(b).
+     */
+    public static final int canonicalTransform(long b) {
+        long best = b;
+        int bestT = 0;
+        for (int t = 1; t < 8; t++) {
+            long b2 = transform(b, t);
+            if (b2 < best) {
+                best = b2;
+                bestT = t;
+            }
+        }
+        return bestT;
+    }
+
+    /**
+     * Maps move i on b to the equivalent move on transform(b, t).
+     */
+    public static final int transformMove(int i, int t) {
+        if ((t & 4) != 0) {
+            i ^= 3;
+        }
+        if ((t & 1) != 0 && i < 2) {
+            i ^= 1;
+        }
+        if ((t & 2) != 0 && i >= 2) {
+            i ^= 1;
+        }
+        return i;
+    }
+
+    /**
+     * Maps move i on transform(b, t) back to the equivalent move on b.
+     */
+    public static final int untransformMove(int i, int t) {
+        if ((t & 2) != 0 && i >= 2) {
+            i ^= 1;
+        }
+        if ((t & 1) != 0 && i < 2) {
+            i ^= 1;
+        }
+        if ((t & 4) != 0) {
+            i ^= 3;
+        }
+        return i;
+    }
+
+    /**
+     * Returns a mask with the low bit of each empty cell's nibble set. For
+     * such a mask m, m & -m is a 2 in its lowest empty cell, which shifted
+     * left once becomes a 4, and Long.bitCount(m) is emptySquares(b).
+     */
+    public static final long emptyMask(long b) {
+        // fold each nibble's bits into its low bit
+        long x = b | (b >>> 1);
+        x |= x >>> 2;
+        return ~x & NIBBLE_LOW_BITS;
+    }
+
+    /**
+     * Returns a 2 in the empty cell of an emptyMask index cells up from the
+     * lowest, or 0 if it has no such cell.
+     */
+    public static final long nthEmpty(long mask, int index) {
+        for (; index > 0; index--) {
+            mask &= mask - 1;
+        }
+        return mask & -mask;
+    }
+
+    /**
+     * Spawns a tile in the index-th empty cell of b, counting up from the
+     * lowest nibble.
+     */
     public static final long insert(long b, boolean isTwo, int index) {
-        long tmp = b;
-        long tile = isTwo ? 1 : 2;
-        while (true) {
-            while ((tmp & 0xf) != 0) {
-                tmp >>>= 4;
-                tile <<= 4;
+        long tile = nthEmpty(emptyMask(b), index);
+        return b | (isTwo ? tile : tile << 1);
+    }
+
+    /**
+     * Writes every board a spawn can make of b to boards, a 2 then a 4 for
+     * each empty cell as insert counts them, and the chance of each to
+     * probs, and returns how many there are, 2 * emptySquares(b). Both
+     * arrays need room for 32 from off; probs may be null when only the
+     * boards are wanted.
+     */
+    public static final int spawnSuccessors(long b, long[] boards,
+            float[] probs, int off) {
+        long empty = emptyMask(b);
+        float two = 0.9f / Long.bitCount(empty);
+        float four = 0.1f / Long.bitCount(empty);
+        int n = off;
+        while (empty != 0) {
+            long tile = empty & -empty;
+            empty ^= tile;
+            boards[n] = b | tile;
+            boards[n + 1] = b | (tile << 1);
+            if (probs != null) {
+                probs[n] = two;
+                probs[n + 1] = four;
             }
-            if (index == 0) {
-                break;
+            n += 2;
+        }
+        return n - off;
+    }
+
+    /**
+     * Writes the board each legal move makes of b to boards, and the move
+     * to moves, in move order, and returns how many legal moves there are.
+     * Both arrays need room for 4 from off.
+     */
+    public static final int moveSuccessors(long b, long[] boards,
+            int[] moves, int off) {
+        int legal = shiftAll(b, boards, off);
+        int n = off;
+        for (int move = 0; move < 4; move++) {
+            if ((legal & (1 << move)) != 0) {
+                boards[n] = boards[off + move];
+                moves[n++] = move;
             }
-            index--;
-            tmp >>>= 4;
-            tile <<= 4;
         }
-        return b | tile;
+        return n - off;
     }
 
     public static final boolean dead(long b) {
-        return shiftBoardRight(b) == b
-                && shiftBoardUp(b) == b
-                && shiftBoardLeft(b) == b
-                && shiftBoardDown(b) == b;
+        return legalMoves(b) == 0;
     }
 
     public static final int rowScore(int r) {
@@ -176,22 +388,32 @@ public class Board {
     }
 
     public static final int emptySquares(long b) {
-        int[] rows = rowsFromBoard(b);
-        return OPEN_COUNT_TABLE[rows[0]]
-                + OPEN_COUNT_TABLE[rows[1]]
-                + OPEN_COUNT_TABLE[rows[2]]
-                + OPEN_COUNT_TABLE[rows[3]];
+        return Long.bitCount(emptyMask(b));
     }
 
     public static final int score(long b, int foursSpawned) {
-        int[] rows = rowsFromBoard(b);
-        return ROW_SCORE_TABLE[rows[0]]
-                + ROW_SCORE_TABLE[rows[1]]
-                + ROW_SCORE_TABLE[rows[2]]
-                + ROW_SCORE_TABLE[rows[3]]
+        return ROW_SCORE_TABLE[(int) (b >>> 48) & ROW_MASK]
+                + ROW_SCORE_TABLE[(int) (b >>> 32) & ROW_MASK]
+                + ROW_SCORE_TABLE[(int) (b >>> 16) & ROW_MASK]
+                + ROW_SCORE_TABLE[(int) b & ROW_MASK]
                 - foursSpawned * 4;
     }
 
+    /**
+     * Sums a per-row table over the four rows and four columns of b.
+     */
+    public static final float sumLines(long b, float[] table) {
+        long t = transpose(b);
+        return table[(int) (b >>> 48) & ROW_MASK]
+                + table[(int) (b >>> 32) & ROW_MASK]
+                + table[(int) (b >>> 16) & ROW_MASK]
+                + table[(int) b & ROW_MASK]
+                + table[(int) (t >>> 48) & ROW_MASK]
+                + table[(int) (t >>> 32) & ROW_MASK]
+                + table[(int) (t >>> 16) & ROW_MASK]
+                + table[(int) t & ROW_MASK];
+    }
+
     public static final int[] tilesFromRow(int r) {
         int[] x = {
             ((r >>> 12) & 0xf),
@@ -0,0 +1,191 @@
+package pkg2048;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free transposition table that any number of search threads can
+ * probe and store into at once.
+ *
+ * Uses lockless hashing: each slot is two longs, the packed entry and the
+ * entry XORed with its board. A reader only accepts a slot whose two words
+ * XOR back to the board it is looking for, so a slot torn by a concurrent
+ * store reads as a miss instead of returning another board's score.
+ *
+ * A board hashes to a window of PROBE_LENGTH consecutive slots. Stores
+ * reuse the slot already holding the board, then an empty or cleared slot,
+ * then one left over from an earlier search, and otherwise evict the
+ * shallowest entry in the window. Clearing and aging only bump a
+ * generation counter; entries older than the last clear count as empty.
+ * Neither may race with searches.
+ *
+ * Optionally counts probes, hits, stores and collisions in striped
+ * counters; a table built without counting skips them entirely.
+ *
+ * @author Jimmy
+ */
+public class ConcurrentTranspositionTable implements TranspositionTable {
+
+    static final int PROBE_LENGTH = 4;
+    static final int DEFAULT_BITS = 20;
+
+    // pairs of (board ^ data, data); data is
+    // score bits << 32 | generation << 16 | cut << 15 | depth << 8
+    // | probability bucket, where cut is set when the depth limit cut off
+    // some line below the board
+    final long[] slots;
+    final int mask;
+    final int shift;
+    final boolean counting;
+    final LongAdder probes = new LongAdder();
+    final LongAdder hits = new LongAdder();
+    final LongAdder stores = new LongAdder();
+    final LongAdder collisions = new LongAdder();
+    int generation = 1;
+    int validFrom = 1;
+
+    public ConcurrentTranspositionTable() {
+        this(DEFAULT_BITS, false);
+    }
+
+    public ConcurrentTranspositionTable(int bits, boolean counting) {
+        slots = new long[2 << bits];
+        mask = (1 << bits) - 1;
+        shift = 64 - bits;
+        this.counting = counting;
+    }
+
+    static int hash(long b, int shift) {
+        return (int) ((b * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * Buckets a probability by its binary exponent, so higher probabilities
+     * (which were pruned less) get smaller buckets.
+     */
+    static int probBucket(float cprob) {
+        return Math.min(0xff, Math.max(0, -Math.getExponent(cprob)));
+    }
+
+    static int tag(int generation, int depth, float cprob, boolean cut) {
+        return generation << 16 | (cut ? 0x8000 : 0)
+                | Math.min(depth, 0x7f) << 8 | probBucket(cprob);
+    }
+
+    @Override
+    public float get(long b, int depth, float cprob) {
+        int bucket = probBucket(cprob);
+        int valid = validFrom;
+        int i = hash(b, shift);
+        if (counting) {
+            probes.increment();
+        }
+        for (int n = 0; n < PROBE_LENGTH; n++, i = (i + 1) & mask) {
+            long data = slots[2 * i + 1];
+            long check = slots[2 * i];
+            if ((check ^ data) == b && ((int) data >>> 16) >= valid) {
+                if (((data >>> 8) & 0x7f) >= depth
+                        && (data & 0xff) <= bucket) {
+                    if (counting) {
+                        hits.increment();
+                    }
+                    return Float.intBitsToFloat((int) (data >>> 32));
+                }
+                return Float.NaN;
+            }
+        }
+        return Float.NaN;
+    }
+
+    @Override
+    public boolean depthCut(long b) {
+        int valid = validFrom;
+        int i = hash(b, shift);
+        for (int n = 0; n < PROBE_LENGTH; n++, i = (i + 1) & mask) {
+            long data = slots[2 * i + 1];
+            long check = slots[2 * i];
+            if ((check ^ data) == b && ((int) data >>> 16) >= valid) {
+                return (data & 0x8000) != 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(long b, int depth, float cprob, float score,
+            boolean cut) {
+        int gen = generation;
+        int valid = validFrom;
+        long data = (long) Float.floatToRawIntBits(score) << 32
+                | (tag(gen, depth, cprob, cut) & 0xffffffffL);
+        int i = hash(b, shift);
+        int victim = -1;
+        int victimDepth = Integer.MAX_VALUE;
+        boolean collision = true;
+        for (int n = 0; n < PROBE_LENGTH; n++, i = (i + 1) & mask) {
+            long old = slots[2 * i + 1];
+            int oldGen = (int) old >>> 16;
+            if (oldGen < valid) {
+                if (victimDepth > -2) {
+                    victim = i;
+                    victimDepth = -2;
+                }
+                collision = false;
+                continue;
+            }
+            int d = oldGen != gen ? -1 : (int) (old >>> 8) & 0x7f;
+            if ((slots[2 * i] ^ old) == b) {
+                victim = i;
+                victimDepth = oldGen != gen ? -1 : d;
+                collision = false;
+                break;
+            }
+            if (d < victimDepth) {
+                victim = i;
+                victimDepth = d;
+            }
+        }
+        if (counting) {
+            stores.increment();
+            if (collision) {
+                collisions.increment();
+            }
+        }
+        if (victimDepth <= depth) {
+            slots[2 * victim] = b ^ data;
+            slots[2 * victim + 1] = data;
+        }
+    }
+
+    @Override
+    public TableStats stats() {
+        if (!counting) {
+            return null;
+        }
+        return new TableStats(probes.sum(), hits.sum(), stores.sum(),
+                collisions.sum());
+    }
+
+    @Override
+    public void resetStats() {
+        probes.reset();
+        hits.reset();
+        stores.reset();
+        collisions.reset();
+    }
+
+    @Override
+    public void clear() {
+        age();
+        validFrom = generation;
+    }
+
+    @Override
+    public void age() {
+        if (++generation > 0xffff) {
+            Arrays.fill(slots, 0);
+            generation = 1;
+            validFrom = 1;
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package pkg2048;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plays seeded games through a reference engine and a candidate in
+ * lockstep and stops at the first position where they disagree, so that
+ * optimizing Board or the search can't silently change play.
+ *
+ * At every position it compares each move's successor, shiftAll and the
+ * legal move mask, the empty cell count, every spawn successor, the
+ * heuristic within a relative tolerance, and the search: the candidate's
+ * move must score within a looser relative tolerance of the best under
+ * the reference search, so near-ties may go either way. The search's
+ * tolerance is looser because the engine's transposition table answers
+ * from deeper searches of a position and across probability buckets,
+ * which moves scores by about 0.1%. The first divergence is reported with
+ * its game seed, move number and board, and both sides are timed. Usage:
+ *
+ *   java pkg2048.Differential [-ai expectimax|improved] [-games n]
+ *       [-moves n] [-seed s] [-tolerance t] [-searchTolerance t]
+ *
+ * exits with status 1 on a divergence.
+ *
+ * @author Jimmy
+ */
+public class Differential {
+
+    /**
+     * One implementation of the rules, the heuristic and the search.
+     */
+    public interface Engine {
+
+        public long shift(long b, int move);
+
+        /**
+         * Writes shift(b, 0..3) to out[0..3] and returns the legal move
+         * mask.
+         */
+        public int shiftAll(long b, long[] out);
+
+        public int legalMoves(long b);
+
+        public int emptySquares(long b);
+
+        public long insert(long b, boolean isTwo, int index);
+
+        public float heuristic(long b);
+
+        /**
+         * Searches b, writing each move's score to scores, and returns the
+         * chosen move.
+         */
+        public int search(long b, float[] scores);
+    }
+
+    /**
+     * The current Board primitives and an Expectimax.
+     */
+    public static class Current implements Engine {
+
+        final Expectimax ai;
+
+        public Current(Expectimax ai) {
+            this.ai = ai;
+        }
+
+        @Override
+        public long shift(long b, int move) {
+            return Board.shift(b, move);
+        }
+
+        @Override
+        public int shiftAll(long b, long[] out) {
+            return Board.shiftAll(b, out, 0);
+        }
+
+        @Override
+        public int legalMoves(long b) {
+            return Board.legalMoves(b);
+        }
+
+        @Override
+        public int emptySquares(long b) {
+            return Board.emptySquares(b);
+        }
+
+        @Override
+        public long insert(long b, boolean isTwo, int index) {
+            return Board.insert(b, isTwo, index);
+        }
+
+        @Override
+        public float heuristic(long b) {
+            return ai.heuristic(b);
+        }
+
+        @Override
+        public int search(long b, float[] scores) {
+            int move = ai.nextMove(b);
+            System.arraycopy(ai.rootScores, 0, scores, 0, 4);
+            return move;
+        }
+    }
+
+    /**
+     * The rules written out over a 4x4 array, with up and down done by
+     * transposing it, the heuristic summed from heuristicRow rather than
+     * its table, and the search as originally written, plain recursion
+     * with a HashMap cache, except that the cache is kept per depth, so a
+     * position is never scored from a shallower or deeper search of it. The
+     * search takes its limits from the Expectimax, so the candidate must
+     * have searched the same board first.
+     */
+    public static class Reference implements Engine {
+
+        final Expectimax ai;
+        final float offset;
+
+        public Reference(Expectimax ai) {
+            this.ai = ai;
+            offset = ai instanceof ImprovedExpectimax ? 0 : 100000;
+        }
+
+        /**
+         * Returns b as grid[row][column], the top row and left column
+         * first.
+         */
+        static int[][] grid(long b) {
+            int[][] g = new int[4][4];
+            for (int i = 0; i < 16; i++) {
+                g[i / 4][i % 4] = (int) (b >>> (4 * (15 - i))) & 0xf;
+            }
+            return g;
+        }
+
+        static long board(int[][] g) {
+            long b = 0;
+            for (int i = 0; i < 16; i++) {
+                b |= (long) g[i / 4][i % 4] << (4 * (15 - i));
+            }
+            return b;
+        }
+
+        static int[][] transpose(int[][] g) {
+            int[][] t = new int[4][4];
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 4; x++) {
+                    t[x][y] = g[y][x];
+                }
+            }
+            return t;
+        }
+
+        static int[] reverse(int[] row) {
+            return new int[]{row[3], row[2], row[1], row[0]};
+        }
+
+        /**
+         * Slides a row to the left, merging each pair of equal tiles once,
+         * except 32768s, whose rank 15 is the largest a nibble holds.
+         */
+        static int[] slide(int[] row) {
+            int[] out = new int[4];
+            int n = 0;
+            boolean merged = false;
+            for (int tile : row) {
+                if (tile == 0) {
+                    continue;
+                }
+                if (n > 0 && !merged && out[n - 1] == tile && tile != 0xf) {
+                    out[n - 1]++;
+                    merged = true;
+                } else {
+                    out[n++] = tile;
+                    merged = false;
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public long shift(long b, int move) {
+            boolean columns = move >= 2;
+            // down is right on the transposed grid, up is left
+            boolean right = move == 1 || move == 2;
+            int[][] g = columns ? transpose(grid(b)) : grid(b);
+            for (int y = 0; y < 4; y++) {
+                g[y] = right ? reverse(slide(reverse(g[y]))) : slide(g[y]);
+            }
+            return board(columns ? transpose(g) : g);
+        }
+
+        @Override
+        public int shiftAll(long b, long[] out) {
+            int legal = 0;
+            for (int move = 0; move < 4; move++) {
+                out[move] = shift(b, move);
+                legal |= out[move] != b ? 1 << move : 0;
+            }
+            return legal;
+        }
+
+        @Override
+        public int legalMoves(long b) {
+            return shiftAll(b, new long[4]);
+        }
+
+        @Override
+        public int emptySquares(long b) {
+            int n = 0;
+            for (int[] row : grid(b)) {
+                for (int tile : row) {
+                    n += tile == 0 ? 1 : 0;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Counts empty cells from the bottom right, right to left and then
+         * upwards, as the packed board orders its nibbles.
+         */
+        @Override
+        public long insert(long b, boolean isTwo, int index) {
+            int[][] g = grid(b);
+            for (int i = 15; i >= 0; i--) {
+                if (g[i / 4][i % 4] == 0 && index-- == 0) {
+                    g[i / 4][i % 4] = isTwo ? 1 : 2;
+                    break;
+                }
+            }
+            return board(g);
+        }
+
+        static int pack(int[] row) {
+            return row[0] << 12 | row[1] << 8 | row[2] << 4 | row[3];
+        }
+
+        @Override
+        public float heuristic(long b) {
+            int[][] g = grid(b);
+            int[][] t = transpose(g);
+            float h = offset;
+            for (int i = 0; i < 4; i++) {
+                h += ai.heuristicRow(pack(g[i]));
+            }
+            for (int i = 0; i < 4; i++) {
+                h += ai.heuristicRow(pack(t[i]));
+            }
+            return h;
+        }
+
+        @Override
+        public int search(long b, float[] scores) {
+            List<HashMap<Long, Float>> cache = new ArrayList<>();
+            for (int depth = 0; depth < ai.depthLimit; depth++) {
+                cache.add(new HashMap<>());
+            }
+            float best = 0;
+            int bestMove = -1;
+            for (int move = 0; move < 4; move++) {
+                long b2 = shift(b, move);
+                scores[move] = b2 == b
+                        ? 0 : scoreRandNode(b2, 1.0f, 0, cache);
+                if (scores[move] > best) {
+                    best = scores[move];
+                    bestMove = move;
+                }
+            }
+            return bestMove;
+        }
+
+        float scoreRandNode(long b, float cprob, int curDepth,
+                List<HashMap<Long, Float>> cache) {
+            int open = emptySquares(b);
+            cprob /= open;
+            float ans = 0;
+            for (int i = 0; i < open; i++) {
+                ans += scoreMoveNode(insert(b, true, i),
+                        cprob * 0.9f, curDepth, cache) * 0.9f;
+                ans += scoreMoveNode(insert(b, false, i),
+                        cprob * 0.1f, curDepth, cache) * 0.1f;
+            }
+            return ans / open;
+        }
+
+        float scoreMoveNode(long b, float cprob, int curDepth,
+                List<HashMap<Long, Float>> cache) {
+            if (cprob < ai.probThresh || curDepth >= ai.depthLimit) {
+                return heuristic(b);
+            }
+            Float cached;
+            if (curDepth < ai.cacheLimit
+                    && (cached = cache.get(curDepth).get(b)) != null) {
+                return cached;
+            }
+            float best = 0;
+            for (int move = 0; move < 4; move++) {
+                long b2 = shift(b, move);
+                if (b2 != b) {
+                    best = Math.max(best,
+                            scoreRandNode(b2, cprob, curDepth + 1, cache));
+                }
+            }
+            if (curDepth < ai.cacheLimit) {
+                cache.get(curDepth).put(b, best);
+            }
+            return best;
+        }
+    }
+
+    static final int REPS = 64;
+
+    final Engine reference;
+    final Engine candidate;
+    final float tolerance;
+    final float searchTolerance;
+    // nanoseconds spent in each side's primitives and searches
+    final long[] primitiveNanos = new long[2];
+    final long[] searchNanos = new long[2];
+    long positions;
+    long searches;
+    // keeps the timed primitives from being optimized away
+    float sink;
+    String divergence;
+
+    public Differential(Engine reference, Engine candidate, float tolerance,
+            float searchTolerance) {
+        this.reference = reference;
+        this.candidate = candidate;
+        this.tolerance = tolerance;
+        this.searchTolerance = searchTolerance;
+    }
+
+    boolean close(float a, float b) {
+        return Math.abs(a - b) <= tolerance * Math.max(1, Math.abs(b));
+    }
+
+    /**
+     * Returns the nanoseconds one round of e's primitives takes on b,
+     * averaged over REPS rounds, as one round is too short to time.
+     */
+    long timePrimitives(Engine e, long b, long[] out) {
+        long start = System.nanoTime();
+        for (int i = 0; i < REPS; i++) {
+            sink += e.shiftAll(b, out) + e.legalMoves(b) + e.emptySquares(b)
+                    + e.heuristic(b);
+        }
+        return (System.nanoTime() - start) / REPS;
+    }
+
+    /**
+     * Plays game seed for at most maxMoves moves. Returns false, leaving
+     * the reason in divergence, at the first disagreement.
+     */
+    public boolean play(long seed, int maxMoves) {
+        RandomSource rng = RandomSource.seeded(seed);
+        long b = candidate.insert(candidate.insert(0, true,
+                rng.nextInt(16)), rng.nextDouble() < 0.9, rng.nextInt(15));
+        long[] candMoves = new long[4];
+        long[] refMoves = new long[4];
+        float[] candScores = new float[4];
+        float[] refScores = new float[4];
+        for (int n = 0; n < maxMoves; n++) {
+            String where = String.format("game %d, move %d, board %016x: ",
+                    seed, n, b);
+            int candLegal = candidate.shiftAll(b, candMoves);
+            int candMask = candidate.legalMoves(b);
+            int candEmpty = candidate.emptySquares(b);
+            float candHeur = candidate.heuristic(b);
+            int refLegal = reference.shiftAll(b, refMoves);
+            float refHeur = reference.heuristic(b);
+            primitiveNanos[1] += timePrimitives(candidate, b, candMoves);
+            primitiveNanos[0] += timePrimitives(reference, b, refMoves);
+            positions++;
+            for (int move = 0; move < 4; move++) {
+                long shifted = candidate.shift(b, move);
+                if (shifted != refMoves[move] || candMoves[move] != shifted) {
+                    divergence = String.format("%sshift(%d) gave %016x, "
+                            + "shiftAll %016x, reference %016x", where, move,
+                            shifted, candMoves[move], refMoves[move]);
+                    return false;
+                }
+            }
+            if (candLegal != refLegal || candMask != refLegal) {
+                divergence = String.format("%slegal moves shiftAll %x, "
+                        + "legalMoves %x, reference %x", where, candLegal,
+                        candMask, refLegal);
+                return false;
+            }
+            if (candEmpty != reference.emptySquares(b)) {
+                divergence = where + "empty squares " + candEmpty
+                        + ", reference " + reference.emptySquares(b);
+                return false;
+            }
+            if (!close(candHeur, refHeur)) {
+                divergence = where + "heuristic " + candHeur + ", reference "
+                        + refHeur;
+                return false;
+            }
+            if (refLegal == 0) {
+                return true;
+            }
+
+            long start = System.nanoTime();
+            int move = candidate.search(b, candScores);
+            long mid = System.nanoTime();
+            int refMove = reference.search(b, refScores);
+            long end = System.nanoTime();
+            searchNanos[1] += mid - start;
+            searchNanos[0] += end - mid;
+            searches++;
+            float best = refMove < 0 ? 0 : refScores[refMove];
+            if (move < 0 || move > 3 || (refLegal & (1 << move)) == 0
+                    || refScores[move] < best
+                            - searchTolerance * Math.max(1, Math.abs(best))) {
+                divergence = String.format(Locale.ROOT, "%smove %d, "
+                        + "reference %d; reference scores %s, candidate "
+                        + "scores %s", where, move, refMove,
+                        Arrays.toString(refScores),
+                        Arrays.toString(candScores));
+                return false;
+            }
+
+            long after = refMoves[move];
+            int empty = reference.emptySquares(after);
+            for (int i = 0; i < empty; i++) {
+                for (boolean two : new boolean[]{true, false}) {
+                    long c = candidate.insert(after, two, i);
+                    long r = reference.insert(after, two, i);
+                    if (c != r) {
+                        divergence = String.format("%sinsert(%016x, %s, %d) "
+                                + "gave %016x, reference %016x", where,
+                                after, two ? "2" : "4", i, c, r);
+                        return false;
+                    }
+                }
+            }
+            b = candidate.insert(after, rng.nextDouble() < 0.9,
+                    rng.nextInt(empty));
+        }
+        return true;
+    }
+
+    public static void main(String[] args) {
+        String name = "improved";
+        int games = 3;
+        int moves = 200;
+        long seed = 2048;
+        float tolerance = 1e-5f;
+        float searchTolerance = 5e-3f;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-ai": name = args[++i]; break;
+                case "-games": games = Integer.parseInt(args[++i]); break;
+                case "-moves": moves = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-tolerance":
+                    tolerance = Float.parseFloat(args[++i]);
+                    break;
+                case "-searchTolerance":
+                    searchTolerance = Float.parseFloat(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        Expectimax ai;
+        switch (name) {
+            case "expectimax": ai = new Expectimax(); break;
+            case "improved": ai = new ImprovedExpectimax(); break;
+            default:
+                throw new IllegalArgumentException("Unknown AI: " + name);
+        }
+        ai.setRandom(RandomSource.seeded(seed));
+        Differential diff = new Differential(
+                new Reference(ai), new Current(ai), tolerance,
+                searchTolerance);
+        boolean ok = true;
+        for (int g = 0; g < games && ok; g++) {
+            ok = diff.play(Simulator.gameSeed(seed, g), moves);
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%s after %d positions; primitives %.1f ns per position "
+                + "reference, %.1f ns candidate; search %.3f ms reference, "
+                + "%.3f ms candidate",
+                ok ? "no divergence" : "diverged", diff.positions,
+                diff.primitiveNanos[0] / (double) Math.max(1, diff.positions),
+                diff.primitiveNanos[1] / (double) Math.max(1, diff.positions),
+                diff.searchNanos[0] / 1e6 / Math.max(1, diff.searches),
+                diff.searchNanos[1] / 1e6 / Math.max(1, diff.searches)));
+        if (!ok) {
+            System.out.println(diff.divergence);
+            System.exit(1);
+        }
+    }
+}
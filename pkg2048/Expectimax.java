@@ -1,8 +1,10 @@
 package pkg2048;
 
-import java.util.HashMap;
-
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import static java.util.concurrent.ForkJoinTask.adapt;
 import static java.util.concurrent.ForkJoinTask.invokeAll;
 
@@ -13,25 +15,365 @@ import static pkg2048.Board.*;
  * @author Jimmy
  */
 public class Expectimax implements AI {
-    
+
+    // evaluates the leaves of every search frontier, vectorised if it can
+    static final LeafEvaluator LEAVES = LeafEvaluator.load();
+
     final float[] heuristicTable;
+    final TranspositionTable table;
+    final SearchContext[] contexts = new SearchContext[4];
+    RandomSource rng = RandomSource.unseeded();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int splitDepth;
+    float splitProb;
+    boolean persistentTable;
+    boolean canonicalKeys;
+    SearchMetrics metrics;
+    OpeningBook book;
+    boolean batchLeaves = true;
+    LeafEvaluator leaves = LEAVES;
+    boolean star1;
+    int sampleOpen;
+    int sampleCells;
+    // bounds on the value of any node, for Star1
+    final float lowerBound;
+    final float upperBound;
+    // the root moves' scores from the last completed search
+    final float[] rootScores = new float[4];
+    // pondering: one context per successor, a flag that cancels them all
+    // and the ponder started by the last search, if still running
+    ForkJoinPool ponderPool;
+    long ponderNodes;
+    SearchContext[] ponderContexts;
+    final AtomicBoolean ponderCancel = new AtomicBoolean();
+    ForkJoinTask<?> pondering;
+    long timeBudget;
+    long nodeBudget;
     float probThresh;
     int depthLimit;
     int cacheLimit;
 
     public Expectimax() {
-        heuristicTable = new float[1 << 16];
-            for (int x = 0; x < 1 << 16; x++) {
-                heuristicTable[x] = heuristicRow(x);
+        this(null, null);
+    }
+
+    /**
+     * Builds the heuristic table from rows under the TableCache key, for
+     * subclasses whose rows depend on constructor arguments, which
+     * heuristicRow can't see yet. Null arguments stand for heuristicKey()
+     * and heuristicRow.
+     */
+    protected Expectimax(String key, TableCache.RowFunction rows) {
+        heuristicTable = TableCache.floats(key != null ? key : heuristicKey(),
+                rows != null ? rows : this::heuristicRow);
+        table = newTable();
+        for (int move = 0; move < 4; move++) {
+            contexts[move] = new SearchContext(table);
+        }
+        canonicalKeys = symmetricHeuristic();
+        float[] bounds = heuristicBounds();
+        // a move node with no legal moves scores 0
+        lowerBound = Math.min(0, bounds[0]);
+        upperBound = Math.max(0, bounds[1]);
+    }
+
+    /**
+     * Sets the source used to break ties when no move scores above zero.
+     */
+    public void setRandom(RandomSource rng) {
+        this.rng = rng;
+    }
+
+    /**
+     * Switches nextMove to iterative deepening within the given per-move
+     * budgets, returning the best move of the deepest completed iteration.
+     * The node budget is split evenly over the four root moves. A budget of
+     * 0 is unlimited; with both 0, nextMove uses its fixed depth rules.
+     */
+    public void setBudget(long timeNanos, long nodes) {
+        timeBudget = timeNanos;
+        nodeBudget = nodes;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Also parallelises chance nodes shallower than depth whose probability
+     * is at least prob, scoring each empty cell as a separate ForkJoin task.
+     * A depth of 0 keeps the search parallel across the root moves only.
+     */
+    public void setParallelSplit(int depth, float prob) {
+        splitDepth = depth;
+        splitProb = prob;
+    }
+
+    /**
+     * Keeps the transposition table between calls to nextMove instead of
+     * clearing it, so positions searched for one move are reused for the
+     * next. Only valid while playing a single game.
+     */
+    public void setPersistentTable(boolean persistent) {
+        persistentTable = persistent;
+    }
+
+    /**
+     * Keys the transposition table on Board.canonical, so the 8 rotations
+     * and reflections of a position share one entry. Defaults to
+     * symmetricHeuristic().
+     */
+    public void setCanonicalKeys(boolean canonical) {
+        canonicalKeys = canonical;
+    }
+
+    /**
+     * Returns whether heuristic(b) is the same for all 8 symmetric images of
+     * b, which canonical keys rely on. This heuristicRow isn't: it only
+     * rewards a tied maximum in the first of its columns.
+     */
+    protected boolean symmetricHeuristic() {
+        return false;
+    }
+
+    /**
+     * Evaluates the last ply of the search in batches instead of one
+     * scoreMoveNode call per leaf: a move node whose moves' spawns are all
+     * leaves collects every one of them into its context's buffers and
+     * scores them with one call to heuristics, as does any other chance
+     * node whose children are all leaves. On by default; the scores are
+     * the same either way.
+     */
+    public void setBatchLeaves(boolean batch) {
+        batchLeaves = batch;
+    }
+
+    /**
+     * Sets how batched leaves are evaluated, by default LeafEvaluator.load().
+     */
+    public void setLeafEvaluator(LeafEvaluator leaves) {
+        this.leaves = leaves;
+    }
+
+    /**
+     * Turns on Star1 pruning of chance nodes: a chance node stops expanding
+     * spawns once, given heuristicBounds(), the spawns left can no longer
+     * lift its value above the best sibling move found so far. The result
+     * is the same as a full search; only exact node values are cached.
+     */
+    public void setStar1(boolean star1) {
+        this.star1 = star1;
+    }
+
+    /**
+     * Scores chance nodes with at least open empty cells by only the given
+     * number of cells, spread evenly over the empty ones, instead of all of
+     * them. This approximates the full expansion; 0 cells turns it off.
+     * Neither this nor Star1 applies to chance nodes split by
+     * setParallelSplit.
+     */
+    public void setSampling(int open, int cells) {
+        sampleOpen = open;
+        sampleCells = cells;
+    }
+
+    /**
+     * Returns {lower, upper} bounds on heuristic(b) over all boards. These
+     * follow from heuristicTable, as heuristic sums 8 of its entries.
+     */
+    protected float[] heuristicBounds() {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float x : heuristicTable) {
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+        }
+        return new float[]{100000 + 8 * min, 100000 + 8 * max};
+    }
+
+    /**
+     * Turns on pondering: once a search picks its move, the position after
+     * each 2 spawn it could be answered with is searched on pool, at most
+     * nodes nodes each, until the next search starts. The results land in
+     * the transposition table, which is kept between moves as by
+     * setPersistentTable, so the next search mostly finds them there. A
+     * null pool turns pondering off. Only valid while playing a single
+     * game.
+     */
+    public void setPondering(ForkJoinPool pool, long nodes) {
+        stopPondering();
+        ponderPool = pool;
+        ponderNodes = nodes;
+        if (pool != null && ponderContexts == null) {
+            ponderContexts = new SearchContext[16];
+            for (int i = 0; i < 16; i++) {
+                ponderContexts[i] = new SearchContext(table);
+                ponderContexts[i].cancel = ponderCancel;
+            }
+        }
+    }
+
+    /**
+     * Cancels the ponder started by the last search, if any, and waits for
+     * it to stop. Searches call this before they touch the limits or the
+     * table.
+     */
+    public void stopPondering() {
+        if (pondering != null) {
+            ponderCancel.set(true);
+            pondering.quietlyJoin();
+            pondering = null;
+            ponderCancel.set(false);
+        }
+    }
+
+    /**
+     * Starts searching every position b can reach by playing move and
+     * spawning a 2, with the limits of the search that chose move.
+     */
+    void ponder(long b, int move) {
+        long[] spawns = new long[32];
+        int n = spawnSuccessors(shift(b, move), spawns, null, 0);
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            // the 2 spawn of each cell
+            long next = spawns[2 * i];
+            SearchContext ctx = ponderContexts[i];
+            tasks[i] = adapt(() -> ponderRoot(next, ctx));
+        }
+        pondering = ponderPool.submit(adapt(() -> invokeAll(tasks)));
+    }
+
+    /**
+     * Scores b's moves as searchRoot would, only to fill the table.
+     */
+    void ponderRoot(long b, SearchContext ctx) {
+        ctx.clearCounters();
+        ctx.reset(Long.MAX_VALUE, ponderNodes);
+        for (int move = 0; move < 4 && !ctx.stopped; move++) {
+            long b2 = shift(b, move);
+            if (b2 != b && !ponderCancel.get()) {
+                scoreRandNode(b2, 1.0f, 0, ctx);
+            }
         }
     }
+
+    /**
+     * Records every nextMove in metrics, or nothing if metrics is null.
+     */
+    public void setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Plays the book's move for any position it covers instead of
+     * searching, or always searches if book is null. The book must have
+     * been built by an AI with this heuristicKey().
+     */
+    public void setOpeningBook(OpeningBook book) {
+        if (book != null && !book.matches(this)) {
+            throw new IllegalArgumentException("opening book built for "
+                    + book.key() + ", not " + heuristicKey());
+        }
+        this.book = book;
+    }
+
+    public TranspositionTable table() {
+        return table;
+    }
+
+    /**
+     * Identifies heuristicRow for TableCache; subclasses whose rows depend
+     * on parameters must include them.
+     */
+    protected String heuristicKey() {
+        return getClass().getName();
+    }
+
+    /**
+     * Creates the transposition table shared by every task of a search, so
+     * positions reached through different root moves are searched once.
+     */
+    protected TranspositionTable newTable() {
+        return new ConcurrentTranspositionTable();
+    }
     
     public int nextMove(long b) {
+        stopPondering();
         probThresh = 0.0001f;
         int score = score(b,0);
         cacheLimit = score < 1 << 12 ? -1 : 4;
         depthLimit = score < 1 << 12 ? 2 : 6;
-        return findBestMove(b);
+        return search(b);
+    }
+
+    int search(long b) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        int move = book != null ? book.lookup(b) : -1;
+        if (move >= 0) {
+            Arrays.fill(rootScores, Float.NaN);
+            if (metrics != null) {
+                metrics.record(System.nanoTime() - start);
+            }
+            return move;
+        }
+        move = timeBudget > 0 || nodeBudget > 0
+                ? deepen(b) : findBestMove(b);
+        if (metrics != null) {
+            metrics.record(System.nanoTime() - start, contexts);
+        }
+        if (ponderPool != null && move >= 0 && shift(b, move) != b) {
+            ponder(b, move);
+        }
+        return move;
+    }
+
+    /**
+     * Searches to depth 1, 2, ... reusing the transposition tables, until
+     * the budget runs out or deeper searches can't change the result. The
+     * depth 1 search always completes. A table hit on an entry whose own
+     * search was cut off by the depth limit counts as a depth cutoff, so
+     * entries kept from earlier moves or pondering don't end the
+     * deepening early.
+     */
+    public int deepen(long b) {
+        long deadline = timeBudget > 0
+                ? System.nanoTime() + timeBudget : Long.MAX_VALUE;
+        long nodeLimit = nodeBudget > 0 ? nodeBudget / 4 : Long.MAX_VALUE;
+        stopPondering();
+        if (persistentTable || ponderPool != null) {
+            table.age();
+        } else {
+            table.clear();
+        }
+        for (SearchContext ctx : contexts) {
+            ctx.clearCounters();
+        }
+        int bestMove = -1;
+        for (int depth = 1; depth < SearchContext.MAX_DEPTH; depth++) {
+            depthLimit = depth;
+            cacheLimit = depth;
+            boolean cutoff = false;
+            for (SearchContext ctx : contexts) {
+                if (depth == 1) {
+                    ctx.reset(Long.MAX_VALUE, Long.MAX_VALUE);
+                } else {
+                    ctx.reset(deadline, nodeLimit);
+                }
+            }
+            int move = searchRoot(b);
+            if (move < 0) {
+                break;
+            }
+            bestMove = move;
+            for (SearchContext ctx : contexts) {
+                cutoff |= ctx.depthCutoff;
+            }
+            if (!cutoff || System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        return bestMove;
     }
 
     public float heuristicRow(int r) {
@@ -58,89 +400,366 @@ public class Expectimax implements AI {
     }
 
     public float heuristic(long b) {
-        long b2 = transpose(b);
-        int[] rows = {
-            (int) (b >>> 48) & ROW_MASK,
-            (int) (b >>> 32) & ROW_MASK,
-            (int) (b >>> 16) & ROW_MASK,
-            (int) b & ROW_MASK,
-            (int) (b2 >>> 48) & ROW_MASK,
-            (int) (b2 >>> 32) & ROW_MASK,
-            (int) (b2 >>> 16) & ROW_MASK,
-            (int) b2 & ROW_MASK};
-        float h = 100000;
-        for (int row : rows) {
-            h += heuristicTable[row];
-        }
-        return h;
+        return 100000 + sumLines(b, heuristicTable);
+    }
+
+    /**
+     * Writes heuristic(boards[i]) to out[i] for each i below n, using rows
+     * as the leaf evaluator's scratch space. Subclasses whose heuristic is
+     * not heuristicTable summed over the lines plus a constant override
+     * this.
+     */
+    void heuristics(long[] boards, int n, float[] out, int[] rows) {
+        leaves.sumLines(heuristicTable, 100000, boards, n, out, rows);
     }
 
     public float scoreRandNode(
-            long b, float cprob, int curDepth, HashMap<Long, Float> map) {
+            long b, float cprob, int curDepth, SearchContext ctx) {
+        return scoreRandNode(b, cprob, curDepth, ctx,
+                Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Scores a chance node whose parent only needs its value if it lies in
+     * (alpha, beta). Otherwise, with Star1 on, the result may just be a
+     * bound: at most alpha, or at least beta.
+     */
+    float scoreRandNode(long b, float cprob, int curDepth, SearchContext ctx,
+            float alpha, float beta) {
         int open = emptySquares(b);
         cprob /= open;
+        ctx.chanceNodes++;
+        if (curDepth < splitDepth && cprob >= splitProb && open > 1) {
+            return forkRandNode(b, cprob, curDepth, ctx, open);
+        }
+        if (star1 || sampleCells > 0) {
+            return pruneRandNode(b, cprob, curDepth, ctx, open, alpha, beta);
+        }
+        if (batchLeaves
+                && (curDepth >= depthLimit || cprob * 0.9f < probThresh)) {
+            return scoreLeaves(b, cprob, curDepth, ctx, open);
+        }
+        long[] spawns = ctx.spawns;
+        int off = 32 * curDepth;
+        int end = off + spawnSuccessors(b, spawns, null, off);
         float ans = 0;
-        long tmp = b;
-        long tile = 1;
-        while (tile != 0) {
-            if ((tmp & 0xf) == 0) {
-                ans += scoreMoveNode(b | tile,
-                        cprob * 0.9f, curDepth, map) * 0.9f;
-                ans += scoreMoveNode(b | (tile << 1),
-                        cprob * 0.1f, curDepth, map) * 0.1f;
-            }
-            tmp >>>= 4;
-            tile <<= 4;
+        for (int i = off; i < end; i += 2) {
+            ans += scoreMoveNode(spawns[i],
+                    cprob * 0.9f, curDepth, ctx) * 0.9f;
+            ans += scoreMoveNode(spawns[i + 1],
+                    cprob * 0.1f, curDepth, ctx) * 0.1f;
         }
         return ans / open;
     }
     
+    /**
+     * Scores a chance node whose children are all leaves, counting them as
+     * scoreMoveNode would have.
+     */
+    float scoreLeaves(
+            long b, float cprob, int curDepth, SearchContext ctx, int open) {
+        countLeaves(cprob, curDepth, ctx, open);
+        int n = spawnSuccessors(b, ctx.leaves, null, 0);
+        heuristics(ctx.leaves, n, ctx.leafValues, ctx.leafRows);
+        return sumSpawns(ctx.leafValues, 0, open);
+    }
+
+    /**
+     * Scores the chance nodes after each legal move of a move node, all of
+     * whose children are leaves, by collecting the spawns of every move
+     * into ctx's frontier and evaluating them in one batch. Returns the
+     * best of them, as scoreMoveNode's loop over the moves would.
+     */
+    float scoreFrontier(long[] moves, int off, int legal, float cprob,
+            int curDepth, SearchContext ctx) {
+        long[] frontier = ctx.leaves;
+        int n = 0;
+        for (int i = 0; i < 4; i++) {
+            if ((legal & (1 << i)) != 0) {
+                n += spawnSuccessors(moves[off + i], frontier, null, n);
+            }
+        }
+        heuristics(frontier, n, ctx.leafValues, ctx.leafRows);
+        float best = 0;
+        n = 0;
+        for (int i = 0; i < 4; i++) {
+            if ((legal & (1 << i)) != 0) {
+                int open = emptySquares(moves[off + i]);
+                ctx.chanceNodes++;
+                countLeaves(cprob / open, curDepth, ctx, open);
+                float score = sumSpawns(ctx.leafValues, n, open);
+                best = score > best ? score : best;
+                n += 2 * open;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Averages the leaf values of a chance node's spawns, a 2 then a 4 for
+     * each of its open cells from values[off].
+     */
+    static float sumSpawns(float[] values, int off, int open) {
+        float ans = 0;
+        for (int i = off; i < off + 2 * open; i += 2) {
+            ans += values[i] * 0.9f;
+            ans += values[i + 1] * 0.1f;
+        }
+        return ans / open;
+    }
+
+    /**
+     * Counts the 2 * open leaf children of a chance node whose cprob is
+     * already divided among its cells, as scoreMoveNode would.
+     */
+    void countLeaves(float cprob, int curDepth, SearchContext ctx, int open) {
+        if (cprob * 0.9f < probThresh) {
+            ctx.probPrunes += open;
+        } else {
+            ctx.depthCutoff = true;
+        }
+        if (cprob * 0.1f < probThresh) {
+            ctx.probPrunes += open;
+        } else {
+            ctx.depthCutoff = true;
+        }
+        ctx.heuristicEvals += 2 * open;
+        if (curDepth > ctx.maxDepth) {
+            ctx.maxDepth = curDepth;
+        }
+    }
+
+    /**
+     * Scores a chance node one spawn at a time, so that with Star1 on it can
+     * stop as soon as the spawns left can't bring its value inside
+     * (alpha, beta), and with sampling on only scores an evenly spread
+     * subset of the empty cells.
+     */
+    float pruneRandNode(long b, float cprob, int curDepth, SearchContext ctx,
+            int open, float alpha, float beta) {
+        int n = sampleCells > 0 && open >= sampleOpen
+                ? Math.min(sampleCells, open) : open;
+        if (!star1) {
+            alpha = Float.NEGATIVE_INFINITY;
+            beta = Float.POSITIVE_INFINITY;
+        }
+        long[] spawns = ctx.spawns;
+        int off = 32 * curDepth;
+        spawnSuccessors(b, spawns, null, off);
+        float sum = 0;
+        for (int s = 0; s < n; s++) {
+            int cell = (2 * s + 1) * open / (2 * n);
+            for (int four = 0; four < 2; four++) {
+                float p = (four == 0 ? 0.9f : 0.1f) / n;
+                // probability of the spawns after this one
+                float rest = (n - s - 1 + (four == 0 ? 0.1f : 0)) / n;
+                float a = (alpha - sum - bound(rest, upperBound)) / p;
+                float c = (beta - sum - bound(rest, lowerBound)) / p;
+                float v = scoreMoveNode(spawns[off + 2 * cell + four],
+                        cprob * (four == 0 ? 0.9f : 0.1f), curDepth, ctx,
+                        a, c);
+                sum += p * v;
+                if (v <= a) {
+                    ctx.chanceCuts++;
+                    return sum + bound(rest, upperBound);
+                }
+                if (v >= c) {
+                    ctx.chanceCuts++;
+                    return sum + bound(rest, lowerBound);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns rest * bound, taking 0 * infinity as 0.
+     */
+    static float bound(float rest, float bound) {
+        return rest == 0 ? 0 : rest * bound;
+    }
+
+    /**
+     * Scores a chance node by forking one task per empty cell.
+     */
+    float forkRandNode(
+            long b, float cprob, int curDepth, SearchContext ctx, int open) {
+        long[] spawns = ctx.spawns;
+        int off = 32 * curDepth;
+        spawnSuccessors(b, spawns, null, off);
+        SpawnTask[] tasks = new SpawnTask[open];
+        for (int i = 0; i < open; i++) {
+            tasks[i] = new SpawnTask(spawns[off + 2 * i],
+                    spawns[off + 2 * i + 1], cprob, curDepth,
+                    ctx.fork(i, open));
+        }
+        invokeAll(tasks);
+        float ans = 0;
+        for (SpawnTask task : tasks) {
+            ans += task.score;
+            ctx.join(task.ctx);
+        }
+        return ans / open;
+    }
+
+    /**
+     * Scores spawning a 2 or a 4 in one empty cell.
+     */
+    final class SpawnTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final long two;
+        final long four;
+        final float cprob;
+        final int curDepth;
+        final SearchContext ctx;
+        float score;
+
+        SpawnTask(long two, long four, float cprob, int curDepth,
+                SearchContext ctx) {
+            this.two = two;
+            this.four = four;
+            this.cprob = cprob;
+            this.curDepth = curDepth;
+            this.ctx = ctx;
+        }
+
+        @Override
+        protected void compute() {
+            score = scoreMoveNode(two,
+                    cprob * 0.9f, curDepth, ctx) * 0.9f
+                    + scoreMoveNode(four,
+                    cprob * 0.1f, curDepth, ctx) * 0.1f;
+        }
+    }
+
     public float scoreMoveNode(
-            long b, float cprob, int curDepth, HashMap<Long, Float> map) {
+            long b, float cprob, int curDepth, SearchContext ctx) {
+        return scoreMoveNode(b, cprob, curDepth, ctx,
+                Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Scores a move node whose parent only needs its value if it lies in
+     * (alpha, beta), returning a bound outside it as soon as one is known.
+     */
+    float scoreMoveNode(long b, float cprob, int curDepth, SearchContext ctx,
+            float alpha, float beta) {
         if (cprob < probThresh || curDepth >= depthLimit) {
+            if (cprob < probThresh) {
+                ctx.probPrunes++;
+            } else {
+                ctx.depthCutoff = true;
+            }
+            ctx.heuristicEvals++;
+            if (curDepth > ctx.maxDepth) {
+                ctx.maxDepth = curDepth;
+            }
             return heuristic(b);
         }
+        if (ctx.expired()) {
+            return 0;
+        }
 
-        Float temp;
-        if (curDepth < cacheLimit && ((temp = map.get(b)) != null)) {
-            return temp;
+        int depth = depthLimit - curDepth;
+        long key = curDepth < cacheLimit && canonicalKeys ? canonical(b) : b;
+        if (curDepth < cacheLimit) {
+            float cached = ctx.table.get(key, depth, cprob);
+            ctx.cacheProbes++;
+            if (!Float.isNaN(cached)) {
+                ctx.cacheHits++;
+                // the entry may come from pondering or an earlier move, so
+                // its own cutoffs were never seen by this search
+                if (!ctx.depthCutoff && ctx.table.depthCut(key)) {
+                    ctx.depthCutoff = true;
+                }
+                return cached;
+            }
         }
 
+        // track the cutoffs below this node apart from the rest, to store
+        // them with its entry
+        boolean outerCutoff = ctx.depthCutoff;
+        ctx.depthCutoff = false;
         float best = 0;
-        for (int i = 0; i < 4; i++) {
-            long b2 = shift(b, i);
-            if (b != b2) {
-                float score = scoreRandNode(b2, cprob, curDepth + 1, map);
+        long[] moves = ctx.moves;
+        int off = 4 * curDepth;
+        int legal = shiftAll(b, moves, off);
+        // the moves lead to chance nodes of the last ply, which neither
+        // fork nor prune
+        boolean frontier = batchLeaves && curDepth + 1 >= depthLimit
+                && curDepth + 1 >= splitDepth && !star1 && sampleCells == 0;
+        if (frontier) {
+            best = scoreFrontier(moves, off, legal, cprob, curDepth + 1, ctx);
+        }
+        for (int i = 0; i < 4 && !frontier; i++) {
+            if ((legal & (1 << i)) != 0) {
+                float score = scoreRandNode(moves[off + i], cprob,
+                        curDepth + 1, ctx, Math.max(alpha, best), beta);
                 best = score > best ? score : best;
+                if (best >= beta) {
+                    break;
+                }
             }
         }
 
-        if (curDepth < cacheLimit) {
-            map.put(b, best);
+        boolean cut = ctx.depthCutoff;
+        ctx.depthCutoff |= outerCutoff;
+        if (ctx.stopped) {
+            return 0;
+        }
+        // a value outside (alpha, beta) may only be a bound
+        if (curDepth < cacheLimit && best > alpha && best < beta) {
+            ctx.table.put(key, depth, cprob, best, cut);
+            ctx.cacheStores++;
         }
 
         return best;
     }
     
     public int findBestMove(long b) {
+        stopPondering();
+        if (persistentTable || ponderPool != null) {
+            table.age();
+        } else {
+            table.clear();
+        }
+        for (SearchContext ctx : contexts) {
+            ctx.clearCounters();
+            ctx.reset(Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+        return searchRoot(b);
+    }
+
+    /**
+     * Scores the four root moves in parallel with the current limits and
+     * returns the best, or -1 if the budget ran out first.
+     */
+    int searchRoot(long b) {
         float best = 0;
-        int bestMove = (int) (Math.random() * 4);
+        int bestMove = rng.nextInt(4);
 
         ForkJoinTask[] task = new ForkJoinTask[4];
 
         for (int move = 0; move < 4; move++) {
             long b2 = shift(b, move);
+            SearchContext ctx = contexts[move];
             task[move] = b == b2
                     ? adapt(() -> 0.0f)
-                    : adapt(() ->
-                            scoreRandNode(
-                                    b2, 1.0f, 0, new HashMap<>(200000)));
+                    : adapt(() -> scoreRandNode(b2, 1.0f, 0, ctx));
         }
 
-        invokeAll(task);
+        pool.invoke(adapt(() -> invokeAll(task)));
+        for (SearchContext ctx : contexts) {
+            if (ctx.stopped) {
+                return -1;
+            }
+        }
         try {
             for (int move = 0; move < 4; move++) {
                 float score = (Float) (task[move].get());
+                rootScores[move] = score;
                 if (score > best) {
                     best = score;
                     bestMove = move;
@@ -148,7 +767,6 @@ public class Expectimax implements AI {
             }
         } catch (Exception e) {
         }
-        
         return bestMove;
     }
 }
@@ -4,15 +4,34 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
-import static pkg2048.Board.*;
-
+/**
+ * The GUI. The game runs on whichever thread is playing it, which publishes
+ * an immutable Frame after every move; a Swing timer repaints the latest
+ * Frame at most FPS times a second, from tile images rendered once, so fast
+ * AIs are never held back by painting. H toggles headless play, where the
+ * display only samples the game a couple of times a second.
+ *
+ * The expectimax AIs search the likely next positions in the background
+ * while their move is applied and painted, at most the pkg2048.ponderNodes
+ * system property's nodes each; 0 turns pondering off.
+ */
 public class Game extends JPanel {
 
     private static final Color BG_COLOR = new Color(0xbbada0);
+    private static final Color TEXT_COLOR = new Color(128, 128, 128, 128);
+    private static final Font SCORE_FONT = new Font("Arial", Font.PLAIN, 22);
+    private static final Font LOSE_FONT = new Font("Arial", Font.PLAIN, 18);
     private static final String FONT_NAME = "Arial";
     private static final int TILE_SIZE = 64;
     private static final int TILES_MARGIN = 16;
+    private static final int FPS = 60;
+    private static final int HEADLESS_FPS = 2;
 
     private static final int[] TILE_BG_COLORS =
         new int[]{
@@ -20,11 +39,35 @@ public class Game extends JPanel {
             0xf65e3b, 0xedcf72, 0xedcc61, 0xedc850, 0xedc53f, 0xedc22e,
             0x009933, 0x0066FF, 0xCC0000, 0x000000};
 
-    private boolean myLose = false;
-    private long board = 0;
-    private int foursSpawned = 0;
+    private static final BufferedImage[] TILES = renderTiles();
+
+    private static final long PONDER_NODES =
+            Long.getLong("pkg2048.ponderNodes", 1 << 16);
+    private static final ForkJoinPool PONDER_POOL = new ForkJoinPool();
+
+    /**
+     * What the display shows of the game at one instant.
+     */
+    static final class Frame {
+        final long board;
+        final int score;
+        final boolean lost;
+
+        Frame(GameState state) {
+            board = state.board();
+            score = state.score();
+            lost = state.isLost();
+        }
+    }
+
+    // guarded by itself; the AI thread and the key handler both move it
+    private final GameState state = new GameState(RandomSource.unseeded());
+    private final Timer timer;
+    private volatile Frame frame;
+    private Frame painted;
 
-    private boolean ai = false;
+    private volatile boolean ai = false;
+    private volatile boolean headless = false;
 
     public Game() {
         setFocusable(true);
@@ -32,8 +75,14 @@ public class Game extends JPanel {
             @Override
             public void keyPressed(KeyEvent e) {
                 if (e.getKeyCode() == KeyEvent.VK_ENTER) {
-                    board = 0xFFFFFFFFFFFFFFFFL;
-                    repaint();
+                    synchronized (state) {
+                        state.board = 0xFFFFFFFFFFFFFFFFL;
+                        publish();
+                    }
+                    return;
+                }
+                if (e.getKeyCode() == KeyEvent.VK_H) {
+                    setHeadless(!headless);
                     return;
                 }
                 if (!ai) {
@@ -44,6 +93,10 @@ public class Game extends JPanel {
                         case KeyEvent.VK_3: x = new Expectimax(); break;
                         case KeyEvent.VK_4: x = new ImprovedExpectimax(); break;
                     }
+                    if (x instanceof Expectimax && PONDER_NODES > 0) {
+                        ((Expectimax) x).setPondering(PONDER_POOL,
+                                PONDER_NODES);
+                    }
                     if (x != null) {
                         ai = true;
                         AI x2 = x;
@@ -54,117 +107,134 @@ public class Game extends JPanel {
 
                 if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
                     resetGame();
-                    repaint();
                     return;
                 } else if (ai) {
                     return;
                 }
 
-                if (!myLose) {
-                    switch (e.getKeyCode()) {
-                        case KeyEvent.VK_LEFT:
-                            move(0);
-                            break;
-                        case KeyEvent.VK_RIGHT:
-                            move(1);
-                            break;
-                        case KeyEvent.VK_DOWN:
-                            move(2);
-                            break;
-                        case KeyEvent.VK_UP:
-                            move(3);
-                            break;
-                    }
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_LEFT:
+                        move(0);
+                        break;
+                    case KeyEvent.VK_RIGHT:
+                        move(1);
+                        break;
+                    case KeyEvent.VK_DOWN:
+                        move(2);
+                        break;
+                    case KeyEvent.VK_UP:
+                        move(3);
+                        break;
                 }
+            }
+        });
+        timer = new Timer(1000 / FPS, e -> {
+            if (frame != painted) {
                 repaint();
             }
         });
         resetGame();
+        timer.start();
     }
 
     public void move(int i) {
-        if (dead(board)) {
-            myLose = true;
-            return;
-        }
-        long board2 = shift(board, i);
-        if (board2 != board) {
-            board = board2;
-            insertRandom();
+        synchronized (state) {
+            if (!state.isLost()) {
+                state.move(i);
+                publish();
+            }
         }
     }
 
     public void resetGame() {
-        myLose = false;
-        board = 0;
-        foursSpawned = 0;
-        insertRandom();
-        insertRandom();
+        synchronized (state) {
+            state.reset();
+            publish();
+        }
     }
 
     public void insertRandom() {
-        boolean isTwo = Math.random() < 0.9;
-        if (!isTwo) {
-            foursSpawned++;
+        synchronized (state) {
+            state.insertRandom();
+            publish();
         }
-        int empty = emptySquares(board);
-        board = insert(board, isTwo, (int) (Math.random() * (empty - 1)));
+    }
+
+    /**
+     * While headless the display repaints HEADLESS_FPS times a second
+     * rather than FPS.
+     */
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+        timer.setDelay(1000 / (headless ? HEADLESS_FPS : FPS));
+    }
+
+    // callers hold the state lock
+    private void publish() {
+        frame = new Frame(state);
     }
 
     @Override
-    public void paint(Graphics g) {
-        super.paint(g);
+    protected void paintComponent(Graphics g) {
+        Frame f = frame;
+        painted = f;
         g.setColor(BG_COLOR);
-        g.fillRect(0, 0, this.getSize().width, this.getSize().height);
-        int[][] tiles = tilesFromBoard(board);
-        for (int y = 0; y < 4; y++) {
-            for (int x = 0; x < 4; x++) {
-                drawTile(g, tiles[y][x], x, y);
-            }
+        g.fillRect(0, 0, getWidth(), getHeight());
+        for (int i = 0; i < 16; i++) {
+            int rank = (int) (f.board >>> (4 * (15 - i))) & 0xf;
+            g.drawImage(TILES[rank], offsetCoors(i % 4), offsetCoors(i / 4),
+                    null);
         }
-    }
-
-    private void drawTile(Graphics g2, int tile, int x, int y) {
-        Graphics2D g = ((Graphics2D) g2);
-        g.setRenderingHint(
-                RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
-        g.setRenderingHint(
-                RenderingHints.KEY_STROKE_CONTROL,
-                RenderingHints.VALUE_STROKE_NORMALIZE);
-        int value = tile == 0 ? 0 : 1 << tile;
-        int xOffset = offsetCoors(x);
-        int yOffset = offsetCoors(y);
-        g.setColor(new Color(TILE_BG_COLORS[tile]));
-        g.fillRoundRect(xOffset, yOffset, TILE_SIZE, TILE_SIZE, 14, 14);
-        Color foreground =
-                value < 16 ? new Color(0x776e65) : new Color(0xf9f6f2);
-        g.setColor(foreground);
-        int size = getSize(value);
-        Font font = new Font(FONT_NAME, Font.BOLD, size);
-        g.setFont(font);
-
-        String s = String.valueOf(value);
-        FontMetrics fm = getFontMetrics(font);
-
-        int w = fm.stringWidth(s);
-        int h = -(int) fm.getLineMetrics(s, g).getBaselineOffsets()[2];
-
-        if (value != 0) {
-            g.drawString(s,
-                    xOffset + (TILE_SIZE - w) / 2,
-                    yOffset + TILE_SIZE - (TILE_SIZE - h) / 2 - 2);
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(
+                RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(TEXT_COLOR);
+        if (f.lost) {
+            g.setFont(LOSE_FONT);
+            g.drawString("You lose! Press ESC to play again", 40,
+                    getHeight() - 30);
         }
+        g.setFont(SCORE_FONT);
+        g.drawString("Score: " + f.score + (headless ? " (headless)" : ""),
+                180, 365);
+    }
 
-        if (myLose) {
-            g.setFont(new Font(FONT_NAME, Font.PLAIN, 18));
-            g.setColor(new Color(128, 128, 128, 128));
-            g.drawString("You lose! Press ESC to play again", 40, getHeight() - 30);
+    /**
+     * Draws the tile of every rank once, as tiles never change.
+     */
+    private static BufferedImage[] renderTiles() {
+        BufferedImage[] tiles = new BufferedImage[16];
+        for (int tile = 0; tile < 16; tile++) {
+            BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(
+                    RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(
+                    RenderingHints.KEY_STROKE_CONTROL,
+                    RenderingHints.VALUE_STROKE_NORMALIZE);
+            int value = tile == 0 ? 0 : 1 << tile;
+            g.setColor(new Color(TILE_BG_COLORS[tile]));
+            g.fillRoundRect(0, 0, TILE_SIZE, TILE_SIZE, 14, 14);
+            if (value != 0) {
+                g.setColor(value < 16
+                        ? new Color(0x776e65) : new Color(0xf9f6f2));
+                Font font = new Font(FONT_NAME, Font.BOLD, getSize(value));
+                g.setFont(font);
+                String s = String.valueOf(value);
+                FontMetrics fm = g.getFontMetrics(font);
+                int w = fm.stringWidth(s);
+                int h = -(int) fm.getLineMetrics(s, g)
+                        .getBaselineOffsets()[2];
+                g.drawString(s, (TILE_SIZE - w) / 2,
+                        TILE_SIZE - (TILE_SIZE - h) / 2 - 2);
+            }
+            g.dispose();
+            tiles[tile] = img;
         }
-        g.setFont(new Font(FONT_NAME, Font.PLAIN, 22));
-        g.setColor(new Color(128, 128, 128, 128));
-        g.drawString("Score: " + score(board, foursSpawned), 180, 365);
-
+        return tiles;
     }
 
     private static int offsetCoors(int arg) {
@@ -183,14 +253,52 @@ public class Game extends JPanel {
         }
     }
 
+    /**
+     * Lets player finish the game. If the pkg2048.gameLog system property
+     * names a file, the game is appended to it as a GameLog.
+     */
     public void aiPlay(AI player) {
+        String logFile = System.getProperty("pkg2048.gameLog");
+        try (GameLog log = logFile == null
+                ? null : new GameLog(Paths.get(logFile), true)) {
+            GameLog.Recorder rec;
+            synchronized (state) {
+                rec = log == null ? null : log.startGame(0, state.board());
+            }
+            aiPlay(player, rec);
+            if (rec != null) {
+                rec.finish();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void aiPlay(AI player, GameLog.Recorder rec) {
         int moveCounter = 0;
         long init = System.currentTimeMillis();
-        while (!myLose) {
-            move(player.nextMove(board));
-            repaint();
+        long board = frame.board;
+        while (!frame.lost) {
+            long start = System.nanoTime();
+            int move = player.nextMove(board);
+            long nanos = System.nanoTime() - start;
+            synchronized (state) {
+                // ESC may have reset the game while the AI was thinking
+                if (state.board() == board && state.move(move)
+                        && rec != null) {
+                    rec.move(move, state.lastSpawn(),
+                            player instanceof Expectimax
+                            ? ((Expectimax) player).rootScores[move]
+                            : Float.NaN, nanos);
+                }
+                publish();
+                board = state.board();
+            }
             moveCounter++;
         }
+        if (player instanceof Expectimax) {
+            ((Expectimax) player).stopPondering();
+        }
         long timeElapsed = System.currentTimeMillis() - init;
         float speed = moveCounter / (timeElapsed / 1000.0f);
         String spdstr = Float.toString(speed);
@@ -198,19 +306,10 @@ public class Game extends JPanel {
             spdstr = spdstr.substring(0,7);
         }
         System.out.println(
-                "Score: " + score(board, foursSpawned) + "; " +
+                "Score: " + frame.score + "; " +
                 moveCounter + " moves at " +
                 spdstr + " moves/second");
         ai = false;
-        pauseAndRepaint();
-    }
-
-    public void pauseAndRepaint() {
-        try {
-            Thread.sleep(300);
-            repaint();
-        } catch (InterruptedException e) {
-        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,124 @@
+package pkg2048;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only binary log of whole games, read back by GameLogReader.
+ *
+ * The file starts with MAGIC. Each game is a header byte GAME, or GAME |
+ * SEARCH_INFO if its moves carry search results, the game's seed and its
+ * first board as big-endian longs, one record per move and an END byte.
+ * A move record is a single byte, move << 5 | four << 4 | cell, where cell
+ * is the nibble index of the tile spawned after the move; with search info
+ * it is followed by the float score of the move and an int latency in
+ * microseconds. Boards are not stored, as they follow from the moves.
+ *
+ * A game is buffered in its Recorder and appended in one write when it
+ * finishes, so games played on many threads never interleave.
+ *
+ * @author Jimmy
+ */
+public class GameLog implements Closeable {
+
+    static final int MAGIC = 0x32474c47;
+    static final int GAME = 0x80;
+    static final int SEARCH_INFO = 0x01;
+    static final int END = 0xff;
+
+    final FileChannel channel;
+    final boolean searchInfo;
+
+    /**
+     * Opens file for appending, creating it if needed. With searchInfo,
+     * every move also records its search score and latency.
+     */
+    public GameLog(Path file, boolean searchInfo) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.searchInfo = searchInfo;
+        synchronized (this) {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+                header.flip();
+                write(header);
+            }
+        }
+    }
+
+    public Recorder startGame(long seed, long board) {
+        return new Recorder(seed, board);
+    }
+
+    synchronized void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Collects the moves of one game until finish appends them to the log.
+     * Not thread-safe; use one per game.
+     */
+    public final class Recorder {
+
+        byte[] buf = new byte[256];
+        int size;
+
+        Recorder(long seed, long board) {
+            buf[size++] = (byte) (GAME | (searchInfo ? SEARCH_INFO : 0));
+            putLong(seed);
+            putLong(board);
+        }
+
+        /**
+         * Records a move and the tile spawned after it, given as a board
+         * holding only that tile, like GameState.lastSpawn. The score and
+         * latency are ignored unless the log keeps search info.
+         */
+        public void move(int move, long spawn, float score, long nanos) {
+            int cell = Long.numberOfTrailingZeros(spawn) >>> 2;
+            int four = (int) (spawn >>> (4 * cell)) == 2 ? 1 : 0;
+            ensure(9);
+            buf[size++] = (byte) (move << 5 | four << 4 | cell);
+            if (searchInfo) {
+                putInt(Float.floatToIntBits(score));
+                putInt((int) Math.min(Integer.MAX_VALUE, nanos / 1000));
+            }
+        }
+
+        public void finish() throws IOException {
+            ensure(1);
+            buf[size++] = (byte) END;
+            write(ByteBuffer.wrap(buf, 0, size));
+        }
+
+        void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+        }
+
+        void putLong(long x) {
+            putInt((int) (x >>> 32));
+            putInt((int) x);
+        }
+
+        void putInt(int x) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (x >>> shift);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package pkg2048;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import static pkg2048.Board.*;
+
+/**
+ * Memory-maps a GameLog and walks its games and moves without allocating,
+ * rebuilding each position from the previous one:
+ *
+ *   GameLogReader r = new GameLogReader(file);
+ *   while (r.nextGame()) {
+ *       while (r.nextMove()) {
+ *           ... r.board(), r.move(), r.score() ...
+ *       }
+ *   }
+ *
+ * A game cut short by a crash while it was appended ends the iteration.
+ * Logs larger than 2 GB must be split. Usage, to summarize a log:
+ *
+ *   java pkg2048.GameLogReader file
+ *
+ * @author Jimmy
+ */
+public class GameLogReader {
+
+    final MappedByteBuffer buf;
+    boolean searchInfo;
+    long seed;
+    long board;
+    long next;
+    int move;
+    int spawnCell;
+    int spawnRank;
+    float score = Float.NaN;
+    long latencyNanos;
+
+    public GameLogReader(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB");
+            }
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (buf.remaining() < 4 || buf.getInt() != GameLog.MAGIC) {
+            throw new IOException(file + " is not a game log");
+        }
+    }
+
+    /**
+     * Advances to the start of the next game, skipping whatever is left of
+     * this one. Returns false at the end of the log.
+     */
+    public boolean nextGame() {
+        while (nextMove()) {
+        }
+        if (buf.remaining() < 17) {
+            buf.position(buf.limit());
+            return false;
+        }
+        int header = buf.get() & 0xff;
+        searchInfo = (header & GameLog.SEARCH_INFO) != 0;
+        seed = buf.getLong();
+        next = buf.getLong();
+        board = next;
+        return true;
+    }
+
+    /**
+     * Advances to the next move of this game. Returns false once the game
+     * is over.
+     */
+    public boolean nextMove() {
+        if (!buf.hasRemaining()) {
+            return false;
+        }
+        int record = buf.get() & 0xff;
+        if (record == GameLog.END || (record & GameLog.GAME) != 0) {
+            if (record != GameLog.END) {
+                // a truncated game; leave the header for nextGame
+                buf.position(buf.position() - 1);
+            }
+            return false;
+        }
+        if (searchInfo && buf.remaining() < 8) {
+            buf.position(buf.limit());
+            return false;
+        }
+        move = record >>> 5;
+        spawnRank = 1 + (record >>> 4 & 1);
+        spawnCell = record & 0xf;
+        if (searchInfo) {
+            score = buf.getFloat();
+            latencyNanos = (buf.getInt() & 0xffffffffL) * 1000;
+        }
+        board = next;
+        next = shift(board, move) | (long) spawnRank << (4 * spawnCell);
+        return true;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Returns the position the current move was played from, or before
+     * the first nextMove of a game, its first position.
+     */
+    public long board() {
+        return board;
+    }
+
+    /**
+     * Returns the position after the current move and its spawn.
+     */
+    public long next() {
+        return next;
+    }
+
+    public int move() {
+        return move;
+    }
+
+    public int spawnCell() {
+        return spawnCell;
+    }
+
+    public int spawnRank() {
+        return spawnRank;
+    }
+
+    /**
+     * Returns the search score of the current move, or NaN if the log has
+     * none.
+     */
+    public float score() {
+        return searchInfo ? score : Float.NaN;
+    }
+
+    public long latencyNanos() {
+        return searchInfo ? latencyNanos : 0;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        GameLogReader r = new GameLogReader(Paths.get(args[0]));
+        long games = 0;
+        long moves = 0;
+        long won = 0;
+        while (r.nextGame()) {
+            games++;
+            while (r.nextMove()) {
+                moves++;
+            }
+            won += GameState.maxRank(r.next()) >= 11 ? 1 : 0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "%d games, %d moves, 2048: %.2f%%; "
+                + "read at %.1f million moves/s",
+                games, moves, 100.0 * won / Math.max(1, games),
+                moves / seconds / 1e6));
+    }
+}
@@ -0,0 +1,54 @@
+package pkg2048;
+
+/**
+ * Outcome of one headless game.
+ *
+ * @author Jimmy
+ */
+public class GameResult {
+
+    public final long seed;
+    public final int score;
+    public final int maxRank;
+    public final int moves;
+    public final long wallNanos;
+    public final int foursSpawned;
+
+    public GameResult(long seed, int score, int maxRank, int moves,
+            long wallNanos, int foursSpawned) {
+        this.seed = seed;
+        this.score = score;
+        this.maxRank = maxRank;
+        this.moves = moves;
+        this.wallNanos = wallNanos;
+        this.foursSpawned = foursSpawned;
+    }
+
+    public int maxTile() {
+        return 1 << maxRank;
+    }
+
+    public static String csvHeader() {
+        return "seed,score,maxTile,moves,wallMillis,foursSpawned";
+    }
+
+    /**
+     * Parses a line written by toCsv. Wall time comes back rounded down
+     * to the millisecond.
+     */
+    public static GameResult fromCsv(String line) {
+        String[] f = line.split(",");
+        if (f.length != 6) {
+            throw new IllegalArgumentException("Not a result: " + line);
+        }
+        return new GameResult(Long.parseLong(f[0]), Integer.parseInt(f[1]),
+                Integer.numberOfTrailingZeros(Integer.parseInt(f[2])),
+                Integer.parseInt(f[3]), Long.parseLong(f[4]) * 1000000,
+                Integer.parseInt(f[5]));
+    }
+
+    public String toCsv() {
+        return seed + "," + score + "," + maxTile() + "," + moves + ","
+                + wallNanos / 1000000 + "," + foursSpawned;
+    }
+}
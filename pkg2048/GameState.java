@@ -0,0 +1,102 @@
+package pkg2048;
+
+import static pkg2048.Board.*;
+
+/**
+ * The rules of a single game, without any display: the board, spawning
+ * random tiles after each move, and detecting a loss.
+ *
+ * @author Jimmy
+ */
+public class GameState {
+
+    final RandomSource rng;
+    long board;
+    int foursSpawned;
+    int moves;
+    boolean lost;
+    // the tile the last insertRandom added, as a board with just that tile
+    long spawn;
+
+    public GameState(RandomSource rng) {
+        this.rng = rng;
+        reset();
+    }
+
+    public void reset() {
+        lost = false;
+        board = 0;
+        foursSpawned = 0;
+        moves = 0;
+        insertRandom();
+        insertRandom();
+    }
+
+    /**
+     * Applies move i and spawns a tile if the board changed. Returns whether
+     * the move was legal; moving on a dead board ends the game.
+     */
+    public boolean move(int i) {
+        if (dead(board)) {
+            lost = true;
+            return false;
+        }
+        long board2 = shift(board, i);
+        if (board2 == board) {
+            return false;
+        }
+        board = board2;
+        moves++;
+        insertRandom();
+        return true;
+    }
+
+    public void insertRandom() {
+        boolean isTwo = rng.nextDouble() < 0.9;
+        if (!isTwo) {
+            foursSpawned++;
+        }
+        long empty = emptyMask(board);
+        long tile = nthEmpty(empty, rng.nextInt(Long.bitCount(empty)));
+        spawn = isTwo ? tile : tile << 1;
+        board |= spawn;
+    }
+
+    public long board() {
+        return board;
+    }
+
+    /**
+     * Returns the tile the last spawn added, as a board holding only it.
+     */
+    public long lastSpawn() {
+        return spawn;
+    }
+
+    public int score() {
+        return Board.score(board, foursSpawned);
+    }
+
+    public int foursSpawned() {
+        return foursSpawned;
+    }
+
+    public int moves() {
+        return moves;
+    }
+
+    public boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Returns the rank (log2) of the largest tile on the board.
+     */
+    public static int maxRank(long b) {
+        int max = 0;
+        for (; b != 0; b >>>= 4) {
+            max = Math.max(max, (int) (b & 0xf));
+        }
+        return max;
+    }
+}
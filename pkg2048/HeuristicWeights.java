@@ -0,0 +1,91 @@
+package pkg2048;
+
+import java.util.Arrays;
+
+/**
+ * The parameters of ImprovedExpectimax's row heuristic. Immutable; the
+ * powers of every tile rank are computed once here rather than for every
+ * row of the table.
+ *
+ * @author Jimmy
+ */
+public final class HeuristicWeights {
+
+    public static final HeuristicWeights DEFAULT = new HeuristicWeights(
+            200000.0f, 4.0f, 47.0f, 3.5f, 11.0f, 700.0f, 270.0f);
+
+    public final float lostPenalty;
+    public final float monotonicityPower;
+    public final float monotonicityWeight;
+    public final float sumPower;
+    public final float sumWeight;
+    public final float mergesWeight;
+    public final float emptyWeight;
+    // rank^monotonicityPower and rank^sumPower
+    final double[] monotonicityPow = new double[16];
+    final double[] sumPow = new double[16];
+
+    public HeuristicWeights(float lostPenalty, float monotonicityPower,
+            float monotonicityWeight, float sumPower, float sumWeight,
+            float mergesWeight, float emptyWeight) {
+        this.lostPenalty = lostPenalty;
+        this.monotonicityPower = monotonicityPower;
+        this.monotonicityWeight = monotonicityWeight;
+        this.sumPower = sumPower;
+        this.sumWeight = sumWeight;
+        this.mergesWeight = mergesWeight;
+        this.emptyWeight = emptyWeight;
+        for (int rank = 0; rank < 16; rank++) {
+            monotonicityPow[rank] = Math.pow(rank, monotonicityPower);
+            sumPow[rank] = Math.pow(rank, sumPower);
+        }
+    }
+
+    /**
+     * Returns the weights in constructor order.
+     */
+    public float[] toArray() {
+        return new float[]{lostPenalty, monotonicityPower, monotonicityWeight,
+            sumPower, sumWeight, mergesWeight, emptyWeight};
+    }
+
+    public static HeuristicWeights fromArray(float[] w) {
+        if (w.length != 7) {
+            throw new IllegalArgumentException(
+                    "Expected 7 weights, got " + w.length);
+        }
+        return new HeuristicWeights(w[0], w[1], w[2], w[3], w[4], w[5], w[6]);
+    }
+
+    /**
+     * Parses the comma-separated form returned by toString.
+     */
+    public static HeuristicWeights parse(String s) {
+        String[] parts = s.split(",");
+        float[] w = new float[parts.length];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = Float.parseFloat(parts[i].trim());
+        }
+        return fromArray(w);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HeuristicWeights
+                && Arrays.equals(toArray(), ((HeuristicWeights) o).toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (float w : toArray()) {
+            sb.append(sb.length() == 0 ? "" : ",").append(w);
+        }
+        return sb.toString();
+    }
+}
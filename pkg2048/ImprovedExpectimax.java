@@ -3,7 +3,6 @@ package pkg2048;
 import static java.lang.Integer.bitCount;
 import static java.lang.Math.min;
 import static java.lang.Math.max;
-import static java.lang.Math.pow;
 
 import static pkg2048.Board.*;
 
@@ -12,22 +11,47 @@ import static pkg2048.Board.*;
  * @author Jimmy
  */
 public class ImprovedExpectimax extends Expectimax {
-    
-    static final float SCORE_LOST_PENALTY = 200000.0f;
-    static final float SCORE_MONOTONICITY_POWER = 4.0f;
-    static final float SCORE_MONOTONICITY_WEIGHT = 47.0f;
-    static final float SCORE_SUM_POWER = 3.5f;
-    static final float SCORE_SUM_WEIGHT = 11.0f;
-    static final float SCORE_MERGES_WEIGHT = 700.0f;
-    static final float SCORE_EMPTY_WEIGHT = 270.0f;
-    
+
+    final HeuristicWeights weights;
+    int fixedDepth;
+
+    public ImprovedExpectimax() {
+        this(HeuristicWeights.DEFAULT);
+    }
+
+    public ImprovedExpectimax(HeuristicWeights weights) {
+        super(key(weights), r -> heuristicRow(weights, r));
+        this.weights = weights;
+    }
+
+    static String key(HeuristicWeights weights) {
+        return ImprovedExpectimax.class.getName() + ":" + weights;
+    }
+
+    public HeuristicWeights weights() {
+        return weights;
+    }
+
+    /**
+     * Makes nextMove search to the given depth instead of choosing one by
+     * the number of distinct tiles; 0 restores the usual rule. The depth
+     * must be below SearchContext.MAX_DEPTH.
+     */
+    public void setFixedDepth(int depth) {
+        if (depth < 0 || depth >= SearchContext.MAX_DEPTH) {
+            throw new IllegalArgumentException("depth " + depth);
+        }
+        fixedDepth = depth;
+    }
+
     @Override
     public int nextMove(long b) {
+        stopPondering();
         int distinctTiles = countDistinctTiles(b);
         probThresh = distinctTiles < 7 ? 0.001f : 0.0001f;
         cacheLimit = 6;
-        depthLimit = max(3, distinctTiles - 2);
-        return findBestMove(b);
+        depthLimit = fixedDepth > 0 ? fixedDepth : max(3, distinctTiles - 2);
+        return search(b);
     }
     
     public int countDistinctTiles(long b) {
@@ -40,8 +64,22 @@ public class ImprovedExpectimax extends Expectimax {
         return bitCount(bitset);
     }
     
+    @Override
+    protected boolean symmetricHeuristic() {
+        return true;
+    }
+
+    @Override
+    protected String heuristicKey() {
+        return key(weights);
+    }
+
     @Override
     public float heuristicRow(int r) {
+        return heuristicRow(weights, r);
+    }
+
+    static float heuristicRow(HeuristicWeights w, int r) {
         int[] tile = tilesFromRow(r);
 
         float sum = 0;
@@ -52,7 +90,7 @@ public class ImprovedExpectimax extends Expectimax {
 
         for (int i = 0; i < 4; i++) {
             int rank = tile[i];
-            sum += pow(rank, SCORE_SUM_POWER);
+            sum += w.sumPow[rank];
             if (rank == 0) {
                 empty++;
             } else {
@@ -75,40 +113,39 @@ public class ImprovedExpectimax extends Expectimax {
         for (int i = 1; i < 4; i++) {
             if (tile[i-1] > tile[i]) {
                 monotonicityLeft +=
-                        pow(tile[i-1], SCORE_MONOTONICITY_POWER) -
-                        pow(tile[i], SCORE_MONOTONICITY_POWER);
+                        w.monotonicityPow[tile[i-1]] -
+                        w.monotonicityPow[tile[i]];
             } else {
                 monotonicityRight +=
-                        pow(tile[i], SCORE_MONOTONICITY_POWER) -
-                        pow(tile[i-1], SCORE_MONOTONICITY_POWER);
+                        w.monotonicityPow[tile[i]] -
+                        w.monotonicityPow[tile[i-1]];
             }
         }
  
         return
-            SCORE_LOST_PENALTY +
-            SCORE_EMPTY_WEIGHT * empty +
-            SCORE_MERGES_WEIGHT * merges -
-            SCORE_MONOTONICITY_WEIGHT *
+            w.lostPenalty +
+            w.emptyWeight * empty +
+            w.mergesWeight * merges -
+            w.monotonicityWeight *
                 min(monotonicityLeft, monotonicityRight) -
-            SCORE_SUM_WEIGHT * sum;
+            w.sumWeight * sum;
     }
     
     @Override
     public float heuristic(long b) {
-        long b2 = transpose(b);
-        int[] rows = {
-            (int) (b >>> 48) & ROW_MASK,
-            (int) (b >>> 32) & ROW_MASK,
-            (int) (b >>> 16) & ROW_MASK,
-            (int) b & ROW_MASK,
-            (int) (b2 >>> 48) & ROW_MASK,
-            (int) (b2 >>> 32) & ROW_MASK,
-            (int) (b2 >>> 16) & ROW_MASK,
-            (int) b2 & ROW_MASK};
-        float h = 0;
-        for (int row : rows) {
-            h += heuristicTable[row];
-        }
-        return h;
+        return sumLines(b, heuristicTable);
+    }
+
+    @Override
+    void heuristics(long[] boards, int n, float[] out, int[] rows) {
+        leaves.sumLines(heuristicTable, 0, boards, n, out, rows);
+    }
+
+    @Override
+    protected float[] heuristicBounds() {
+        float[] bounds = super.heuristicBounds();
+        bounds[0] -= 100000;
+        bounds[1] -= 100000;
+        return bounds;
     }
 }
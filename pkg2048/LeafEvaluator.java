@@ -0,0 +1,56 @@
+package pkg2048;
+
+/**
+ * Evaluates a batch of search leaves at once, for heuristics that sum a
+ * per-row table over the rows and columns of the board.
+ *
+ * SCALAR calls Board.sumLines once per board. The vector source root holds
+ * VectorLeafEvaluator, which gathers the table entries of several boards
+ * at a time with the incubating Vector API. It is compiled separately, as
+ * the rest of the tree builds without jdk.incubator.vector:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp out -d out \
+ *       vector/pkg2048/VectorLeafEvaluator.java
+ *
+ * and load() picks it up when it is on the class path and the JVM runs
+ * with --add-modules jdk.incubator.vector, falling back to SCALAR
+ * otherwise or if the pkg2048.scalarLeaves system property is set.
+ *
+ * @author Jimmy
+ */
+public interface LeafEvaluator {
+
+    // room rows needs for any evaluator
+    public static final int ROWS = 64;
+
+    /**
+     * Writes bias + Board.sumLines(boards[i], table) to out[i] for each i
+     * below n, rounding exactly as that expression does. rows is scratch
+     * space with room for ROWS entries.
+     */
+    public void sumLines(float[] table, float bias, long[] boards, int n,
+            float[] out, int[] rows);
+
+    public static final LeafEvaluator SCALAR = (table, bias, boards, n,
+            out, rows) -> {
+        for (int i = 0; i < n; i++) {
+            out[i] = bias + Board.sumLines(boards[i], table);
+        }
+    };
+
+    /**
+     * Returns the vector evaluator if it loads, or SCALAR.
+     */
+    public static LeafEvaluator load() {
+        if (Boolean.getBoolean("pkg2048.scalarLeaves")) {
+            return SCALAR;
+        }
+        try {
+            return (LeafEvaluator) Class.forName("pkg2048.VectorLeafEvaluator")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled, or jdk.incubator.vector not resolved
+            return SCALAR;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package pkg2048;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.util.concurrent.ForkJoinTask.adapt;
+import static java.util.concurrent.ForkJoinTask.invokeAll;
+
+import static pkg2048.Board.*;
+
+/**
+ * Scores each legal move by the mean final score of random games played
+ * to the end from it, and plays the best.
+ *
+ * Each move's playouts are split over one ForkJoin task per worker of the
+ * pool, so the playouts per second grow with the cores, and every task
+ * draws from its own SplitMix64 state kept in a local long, so a playout
+ * allocates nothing. A guided playout never moves up unless it has to,
+ * which keeps the largest tiles along the bottom as a human would and
+ * makes the random games much longer and more telling.
+ *
+ * @author Jimmy
+ */
+public class MonteCarlo implements AI {
+
+    static final int DEFAULT_PLAYOUTS = 200;
+    // playouts between reads of the clock
+    static final int CHECK_EVERY = 16;
+
+    RandomSource rng = RandomSource.unseeded();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    boolean guided = true;
+    long timeBudget;
+    int playouts = DEFAULT_PLAYOUTS;
+    // the mean final score after each root move in the last nextMove, and
+    // how many playouts it ran
+    final float[] rootScores = new float[4];
+    long lastPlayouts;
+
+    public MonteCarlo() {
+    }
+
+    public MonteCarlo(RandomSource rng) {
+        this.rng = rng;
+    }
+
+    public void setRandom(RandomSource rng) {
+        this.rng = rng;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Plays purely random playouts rather than guided ones.
+     */
+    public void setGuided(boolean guided) {
+        this.guided = guided;
+    }
+
+    /**
+     * Limits each nextMove to timeNanos and to playouts playouts per legal
+     * move. A limit of 0 is unlimited, but not both.
+     */
+    public void setBudget(long timeNanos, int playouts) {
+        if (timeNanos <= 0 && playouts <= 0) {
+            throw new IllegalArgumentException("Unlimited budget");
+        }
+        timeBudget = timeNanos;
+        this.playouts = playouts;
+    }
+
+    @Override
+    public int nextMove(long b) {
+        long deadline = timeBudget > 0
+                ? System.nanoTime() + timeBudget : Long.MAX_VALUE;
+        int workers = pool.getParallelism();
+        int legal = legalMoves(b);
+        PlayoutTask[] tasks =
+                new PlayoutTask[Integer.bitCount(legal) * workers];
+        int n = 0;
+        for (int move = 0; move < 4; move++) {
+            if ((legal & (1 << move)) == 0) {
+                continue;
+            }
+            for (int w = 0; w < workers; w++) {
+                // split the quota evenly, the first workers taking the rest
+                int quota = playouts <= 0 ? Integer.MAX_VALUE : playouts
+                        / workers + (w < playouts % workers ? 1 : 0);
+                long seed = (long) rng.nextInt(1 << 30) << 34
+                        ^ (long) rng.nextInt(1 << 30) << 4 ^ w;
+                tasks[n++] = new PlayoutTask(shift(b, move), move, quota,
+                        deadline, seed, guided);
+            }
+        }
+        pool.invoke(adapt(() -> invokeAll(tasks)));
+
+        long[] sums = new long[4];
+        long[] counts = new long[4];
+        for (PlayoutTask task : tasks) {
+            sums[task.move] += task.sum;
+            counts[task.move] += task.count;
+        }
+        int bestMove = rng.nextInt(4);
+        float best = -1;
+        lastPlayouts = 0;
+        for (int move = 0; move < 4; move++) {
+            lastPlayouts += counts[move];
+            rootScores[move] = counts[move] == 0
+                    ? 0 : (float) sums[move] / counts[move];
+            if (counts[move] > 0 && rootScores[move] > best) {
+                best = rootScores[move];
+                bestMove = move;
+            }
+        }
+        return bestMove;
+    }
+
+    /**
+     * Runs playouts from one root move's board until its quota or the
+     * deadline.
+     */
+    static final class PlayoutTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final long b;
+        final int move;
+        final int quota;
+        final long deadline;
+        final long seed;
+        final boolean guided;
+        long sum;
+        long count;
+
+        PlayoutTask(long b, int move, int quota, long deadline, long seed,
+                boolean guided) {
+            this.b = b;
+            this.move = move;
+            this.quota = quota;
+            this.deadline = deadline;
+            this.seed = seed;
+            this.guided = guided;
+        }
+
+        @Override
+        protected void compute() {
+            long s = seed;
+            for (int i = 0; i < quota; i++) {
+                if (i % CHECK_EVERY == 0 && i > 0
+                        && System.nanoTime() > deadline) {
+                    break;
+                }
+                s += 0x9E3779B97F4A7C15L;
+                // hashed, so consecutive playouts' streams don't overlap
+                sum += playout(b, mix(s), guided);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Plays random moves from b, spawning a tile before each, until the
+     * game is lost, and returns the final score. b must have an empty
+     * cell, as it does after any move; seed determines every choice.
+     */
+    static int playout(long b, long seed, boolean guided) {
+        long s = seed;
+        int fours = 0;
+        while (true) {
+            s += 0x9E3779B97F4A7C15L;
+            long r = mix(s);
+            long empty = emptyMask(b);
+            boolean two = (r >>> 32 & 0xffffffffL) % 10 != 0;
+            long tile = nthEmpty(empty,
+                    (int) ((r & 0xffffffffL) % Long.bitCount(empty)));
+            b |= two ? tile : tile << 1;
+            fours += two ? 0 : 1;
+            int legal = legalMoves(b);
+            if (guided && legal != 8) {
+                legal &= 7;
+            }
+            if (legal == 0) {
+                return score(b, fours);
+            }
+            s += 0x9E3779B97F4A7C15L;
+            int k = (int) ((mix(s) >>> 1) % Integer.bitCount(legal));
+            // the k-th set bit of legal
+            for (; k > 0; k--) {
+                legal &= legal - 1;
+            }
+            b = shift(b, Integer.numberOfTrailingZeros(legal));
+        }
+    }
+
+    /**
+     * SplitMix64's finalizer.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
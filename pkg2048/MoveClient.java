@@ -0,0 +1,152 @@
+package pkg2048;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static pkg2048.Board.*;
+
+/**
+ * Load generator for MoveServer. Each client thread opens a connection and
+ * sends requests of batch boards, taken from seeded random games, one at
+ * a time, timing each round trip. Usage:
+ *
+ *   java pkg2048.MoveClient [-port p] [-clients c] [-requests r]
+ *       [-batch n] [-seed s]
+ *
+ * prints the boards served per second and the round-trip latency
+ * percentiles. A client fails if its connection does or if the server
+ * answers any board with an illegal move, and the tool then exits with
+ * status 1.
+ *
+ * @author Jimmy
+ */
+public class MoveClient {
+
+    final int port;
+    final long[] boards;
+
+    public MoveClient(int port, long[] boards) {
+        this.port = port;
+        this.boards = boards;
+    }
+
+    /**
+     * Returns n positions from random games seeded from seed.
+     */
+    static long[] positions(long seed, int n) {
+        long[] boards = new long[n];
+        RandomSource rng = RandomSource.seeded(seed);
+        GameState game = new GameState(rng.split());
+        AI ai = AI.randomPlayer(rng.split());
+        for (int i = 0; i < n; i++) {
+            if (game.isLost()) {
+                game.reset();
+            }
+            boards[i] = game.board();
+            game.move(ai.nextMove(game.board()));
+        }
+        return boards;
+    }
+
+    /**
+     * Sends requests requests of batch boards on one connection, recording
+     * each round trip in latency.
+     */
+    public void run(int requests, int batch, int offset,
+            SearchMetrics latency) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            byte[] moves = new byte[batch];
+            int next = offset;
+            for (int r = 0; r < requests; r++) {
+                long start = System.nanoTime();
+                out.writeInt(batch);
+                for (int i = 0; i < batch; i++) {
+                    out.writeLong(boards[(next + i) % boards.length]);
+                }
+                out.flush();
+                in.readFully(moves);
+                latency.record(System.nanoTime() - start);
+                for (int i = 0; i < batch; i++) {
+                    long b = boards[(next + i) % boards.length];
+                    int move = moves[i];
+                    if (move < 0 ? !dead(b) : shift(b, move) == b) {
+                        throw new IllegalStateException(String.format(
+                                "illegal move %d for %016x", move, b));
+                    }
+                }
+                next += batch;
+            }
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int port = MoveServer.DEFAULT_PORT;
+        int clients = 16;
+        int requests = 100;
+        int batch = 1;
+        long seed = 2048;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-clients": clients = Integer.parseInt(args[++i]); break;
+                case "-requests":
+                    requests = Integer.parseInt(args[++i]);
+                    break;
+                case "-batch": batch = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        MoveClient client = new MoveClient(port, positions(seed, 1 << 16));
+        SearchMetrics latency = new SearchMetrics();
+        AtomicLong failed = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        int r = requests;
+        int n = batch;
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int offset = c * r * n;
+            threads[c] = new Thread(() -> {
+                try {
+                    client.run(r, n, offset, latency);
+                } catch (IOException | RuntimeException e) {
+                    // an illegal move fails the client as a lost
+                    // connection does
+                    failed.incrementAndGet();
+                    System.err.println("client failed: " + e);
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "%d clients, %d requests of %d boards: %.1f boards/s; "
+                + "round trip p50 %.3f ms, p99 %.3f ms, max %.3f ms; "
+                + "%d clients failed",
+                clients, latency.getMoves(), batch,
+                latency.getMoves() * batch / seconds,
+                latency.getLatencyP50Millis(), latency.getLatencyP99Millis(),
+                latency.getLatencyMaxMillis(), failed.get()));
+        if (failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+}
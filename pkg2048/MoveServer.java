@@ -0,0 +1,290 @@
+package pkg2048;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static pkg2048.Board.*;
+
+/**
+ * Serves moves to other processes over TCP on localhost.
+ *
+ * A request is a big-endian int n, 1 to MAX_REQUEST, followed by n packed
+ * boards as longs; the reply is n bytes, the AI's move for each board.
+ * Should the AI choose a move that doesn't change the board, the first
+ * one that does is sent instead, and -1 if there is none. A connection
+ * may pipeline requests and is closed by sending n = 0 or by closing it.
+ *
+ * Connections are handled on virtual threads where the JVM has them and on
+ * a cached thread pool otherwise. They cut requests into chunks of at most
+ * CHUNK boards on a bounded queue, which a fixed set of workers drain,
+ * taking up to batch chunks from any connections at a time. Each worker
+ * owns an AI, and the expectimax AIs share their heuristic tables through
+ * TableCache and the ForkJoin common pool. An expectimax worker keeps its
+ * transposition table across the boards of a batch and only clears it
+ * before the next, so a position reached from several of them, as
+ * consecutive positions of a game often are, is searched once. Should
+ * the AI fail on a board, its chunk is answered with -1 for every board
+ * and the worker carries on. When the queue is full,
+ * connections stop reading, which pushes back on their clients through
+ * TCP. Every board's latency, from its arrival to its move, is recorded
+ * in SearchMetrics published over JMX. Usage:
+ *
+ *   java pkg2048.MoveServer [-ai name] [-port p] [-threads t]
+ *       [-queue chunks] [-batch chunks]
+ *
+ * where name is any Simulator AI. MoveClient generates load for it.
+ *
+ * @author Jimmy
+ */
+public class MoveServer implements Closeable {
+
+    static final int DEFAULT_PORT = 2048;
+    static final int MAX_REQUEST = 1 << 16;
+    static final int CHUNK = 64;
+
+    /**
+     * A slice of one request's boards.
+     */
+    static final class Chunk {
+
+        final long[] boards;
+        final byte[] moves;
+        final int from;
+        final int to;
+        final long arrived;
+        final CountDownLatch done;
+
+        Chunk(long[] boards, byte[] moves, int from, int to, long arrived,
+                CountDownLatch done) {
+            this.boards = boards;
+            this.moves = moves;
+            this.from = from;
+            this.to = to;
+            this.arrived = arrived;
+            this.done = done;
+        }
+    }
+
+    final ServerSocket socket;
+    final BlockingQueue<Chunk> queue;
+    final int batch;
+    final SearchMetrics metrics;
+    final ExecutorService connections = connectionExecutor();
+    final List<Thread> workers = new ArrayList<>();
+    volatile boolean closed;
+
+    /**
+     * Starts serving on port of the loopback address, with threads workers
+     * each playing an AI from factory.
+     */
+    public MoveServer(Function<RandomSource, AI> factory, int port,
+            int threads, int queueSize, int batch, SearchMetrics metrics)
+            throws IOException {
+        socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        queue = new ArrayBlockingQueue<>(queueSize);
+        this.batch = batch;
+        this.metrics = metrics;
+        RandomSource rng = RandomSource.unseeded();
+        for (int i = 0; i < threads; i++) {
+            AI ai = factory.apply(rng.split());
+            if (ai instanceof Expectimax) {
+                // work clears the table between batches instead
+                ((Expectimax) ai).setPersistentTable(true);
+            }
+            Thread t = new Thread(() -> work(ai), "move-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+        // keeps the JVM up until close
+        new Thread(this::accept, "move-acceptor").start();
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor on Java 21 and later, and
+     * a cached thread pool before.
+     */
+    static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    void accept() {
+        while (!closed) {
+            try {
+                Socket s = socket.accept();
+                connections.execute(() -> serve(s));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    void serve(Socket s) {
+        try (Socket c = s;
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(c.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(c.getOutputStream()))) {
+            c.setTcpNoDelay(true);
+            while (true) {
+                int n = in.readInt();
+                if (n <= 0 || n > MAX_REQUEST) {
+                    return;
+                }
+                long[] boards = new long[n];
+                for (int i = 0; i < n; i++) {
+                    boards[i] = in.readLong();
+                }
+                out.write(moves(boards));
+                // only flush once the client has nothing more pipelined
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // the client hung up
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("connection failed: " + e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues boards in chunks, blocking while the queue is full, and waits
+     * for the workers' moves.
+     */
+    byte[] moves(long[] boards) throws InterruptedException {
+        long arrived = System.nanoTime();
+        byte[] moves = new byte[boards.length];
+        int chunks = (boards.length + CHUNK - 1) / CHUNK;
+        CountDownLatch done = new CountDownLatch(chunks);
+        for (int from = 0; from < boards.length; from += CHUNK) {
+            queue.put(new Chunk(boards, moves, from,
+                    Math.min(boards.length, from + CHUNK), arrived, done));
+        }
+        done.await();
+        return moves;
+    }
+
+    void work(AI ai) {
+        List<Chunk> chunks = new ArrayList<>(batch);
+        TranspositionTable table = ai instanceof Expectimax
+                ? ((Expectimax) ai).table() : null;
+        SearchContext[] contexts = ai instanceof Expectimax
+                ? ((Expectimax) ai).contexts : new SearchContext[0];
+        try {
+            while (true) {
+                chunks.add(queue.take());
+                queue.drainTo(chunks, batch - 1);
+                if (table != null) {
+                    table.clear();
+                }
+                for (Chunk c : chunks) {
+                    try {
+                        for (int i = c.from; i < c.to; i++) {
+                            long b = c.boards[i];
+                            c.moves[i] = (byte) legalMove(b, ai.nextMove(b));
+                            if (metrics != null) {
+                                metrics.record(System.nanoTime() - c.arrived,
+                                        contexts);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("move failed: " + e);
+                        Arrays.fill(c.moves, c.from, c.to, (byte) -1);
+                    } finally {
+                        c.done.countDown();
+                    }
+                }
+                chunks.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Returns move if it changes b, else the first move that does, or -1.
+     */
+    static int legalMove(long b, int move) {
+        if (move >= 0 && move < 4 && shift(b, move) != b) {
+            return move;
+        }
+        for (move = 0; move < 4; move++) {
+            if (shift(b, move) != b) {
+                return move;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+        connections.shutdownNow();
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String name = "improved";
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueSize = 1024;
+        int batch = 16;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-ai": name = args[++i]; break;
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-queue": queueSize = Integer.parseInt(args[++i]); break;
+                case "-batch": batch = Integer.parseInt(args[++i]); break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        SearchMetrics metrics = new SearchMetrics().register("server");
+        MoveServer server = new MoveServer(Simulator.aiFactory(name), port,
+                threads, queueSize, batch, metrics);
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(() -> System.err.println(metrics.toJson())));
+        System.err.println("serving " + name + " on port " + server.port());
+    }
+}
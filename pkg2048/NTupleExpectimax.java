@@ -0,0 +1,61 @@
+package pkg2048;
+
+import static pkg2048.Board.*;
+
+/**
+ * Expectimax with an n-tuple network as its leaf evaluation.
+ *
+ * The network estimates the score still to come, so a leaf is worth the
+ * score already on the board plus its value; that keeps leaves reached
+ * through different merges comparable.
+ *
+ * @author Jimmy
+ */
+public class NTupleExpectimax extends Expectimax {
+
+    final NTupleNetwork net;
+    final int depth;
+
+    public NTupleExpectimax(NTupleNetwork net, int depth) {
+        this.net = net;
+        this.depth = depth;
+    }
+
+    @Override
+    public int nextMove(long b) {
+        stopPondering();
+        probThresh = 0.001f;
+        depthLimit = depth;
+        cacheLimit = depth;
+        return search(b);
+    }
+
+    @Override
+    protected String heuristicKey() {
+        // heuristicTable is unused and heuristicRow is inherited, so share
+        // Expectimax's table rather than building another
+        return Expectimax.class.getName();
+    }
+
+    @Override
+    protected boolean symmetricHeuristic() {
+        return true;
+    }
+
+    @Override
+    protected float[] heuristicBounds() {
+        return new float[]{0, Float.POSITIVE_INFINITY};
+    }
+
+    @Override
+    public float heuristic(long b) {
+        return Math.max(0, score(b, 0) + net.value(b));
+    }
+
+    @Override
+    void heuristics(long[] boards, int n, float[] out, int[] rows) {
+        for (int i = 0; i < n; i++) {
+            out[i] = heuristic(boards[i]);
+        }
+    }
+}
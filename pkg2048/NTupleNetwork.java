@@ -0,0 +1,181 @@
+package pkg2048;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * N-tuple network value function over the packed board.
+ *
+ * Each tuple is a list of cells (nibble indices, 0 being the lowest); the
+ * tiles in those cells index a table of 16^length float weights. The value
+ * of a board sums every tuple over all 8 symmetries of the board, so the
+ * network is symmetric by construction and each tuple's weights are shared
+ * by its 8 images.
+ *
+ * Weights are plain arrays updated without locking; concurrent trainers may
+ * lose the odd update, which TD learning tolerates.
+ *
+ * @author Jimmy
+ */
+public class NTupleNetwork {
+
+    static final int MAGIC = 0x4e54504c;
+
+    // two straight lines and three 2x2 squares, 1.3 MB
+    public static final int[][] SMALL = {
+        {0, 1, 2, 3}, {4, 5, 6, 7}, {0, 1, 4, 5}, {1, 2, 5, 6}, {5, 6, 9, 10}};
+    // Szubert and Jaskowski's 6-tuples, 256 MB
+    public static final int[][] LARGE = {
+        {0, 1, 2, 3, 4, 5}, {4, 5, 6, 7, 8, 9},
+        {0, 1, 2, 4, 5, 6}, {4, 5, 6, 8, 9, 10}};
+
+    static final ConcurrentHashMap<String, NTupleNetwork> SHARED =
+            new ConcurrentHashMap<>();
+
+    final int[][] tuples;
+    final float[][] weights;
+    // every tuple under every symmetry, and the weight table each one uses
+    final int[][] cells;
+    final int[] group;
+    // temporal coherence accumulators, allocated by enableCoherence()
+    float[][] errors;
+    float[][] absErrors;
+
+    public NTupleNetwork(int[][] tuples) {
+        this.tuples = tuples;
+        weights = new float[tuples.length][];
+        cells = new int[8 * tuples.length][];
+        group = new int[8 * tuples.length];
+        for (int g = 0; g < tuples.length; g++) {
+            weights[g] = new float[1 << (4 * tuples[g].length)];
+            for (int t = 0; t < 8; t++) {
+                int[] image = new int[tuples[g].length];
+                for (int k = 0; k < image.length; k++) {
+                    image[k] = cellImage(tuples[g][k], t);
+                }
+                cells[8 * g + t] = image;
+                group[8 * g + t] = g;
+            }
+        }
+    }
+
+    /**
+     * Returns where cell goes under Board.transform(b, t).
+     */
+    static int cellImage(int cell, int t) {
+        long moved = Board.transform(1L << (4 * cell), t);
+        return Long.numberOfTrailingZeros(moved) / 4;
+    }
+
+    static int index(long b, int[] cells) {
+        int idx = 0;
+        for (int cell : cells) {
+            idx = (idx << 4) | (int) (b >>> (4 * cell)) & 0xf;
+        }
+        return idx;
+    }
+
+    public float value(long b) {
+        float v = 0;
+        for (int i = 0; i < cells.length; i++) {
+            v += weights[group[i]][index(b, cells[i])];
+        }
+        return v;
+    }
+
+    /**
+     * Moves value(b) towards value(b) + error, at learning rate alpha per
+     * weight, scaled per weight by its temporal coherence if enabled.
+     */
+    public void update(long b, float error, float alpha) {
+        for (int i = 0; i < cells.length; i++) {
+            int g = group[i];
+            int idx = index(b, cells[i]);
+            if (errors == null) {
+                weights[g][idx] += alpha * error;
+            } else {
+                float a = absErrors[g][idx];
+                float rate = a == 0 ? 1 : Math.abs(errors[g][idx]) / a;
+                weights[g][idx] += alpha * rate * error;
+                errors[g][idx] += error;
+                absErrors[g][idx] += Math.abs(error);
+            }
+        }
+    }
+
+    /**
+     * Switches update() to temporal coherence learning (TC), which adapts
+     * each weight's learning rate to how consistently its errors agree.
+     */
+    public void enableCoherence() {
+        errors = new float[weights.length][];
+        absErrors = new float[weights.length][];
+        for (int g = 0; g < weights.length; g++) {
+            errors[g] = new float[weights[g].length];
+            absErrors[g] = new float[weights[g].length];
+        }
+    }
+
+    public void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(tuples.length);
+            for (int[] tuple : tuples) {
+                out.writeByte(tuple.length);
+                for (int cell : tuple) {
+                    out.writeByte(cell);
+                }
+            }
+            for (float[] w : weights) {
+                for (float x : w) {
+                    out.writeFloat(x);
+                }
+            }
+        }
+    }
+
+    public static NTupleNetwork load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not an n-tuple network");
+            }
+            int[][] tuples = new int[in.readInt()][];
+            for (int g = 0; g < tuples.length; g++) {
+                tuples[g] = new int[in.readUnsignedByte()];
+                for (int k = 0; k < tuples[g].length; k++) {
+                    tuples[g][k] = in.readUnsignedByte();
+                }
+            }
+            NTupleNetwork net = new NTupleNetwork(tuples);
+            for (float[] w : net.weights) {
+                for (int i = 0; i < w.length; i++) {
+                    w[i] = in.readFloat();
+                }
+            }
+            return net;
+        }
+    }
+
+    /**
+     * Loads path once per JVM and shares the network between callers, who
+     * must not train it.
+     */
+    public static NTupleNetwork loadShared(String path) {
+        return SHARED.computeIfAbsent(path, p -> {
+            try {
+                return load(p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package pkg2048;
+
+import static pkg2048.Board.*;
+
+/**
+ * Plays the move whose immediate reward plus afterstate value is highest,
+ * searching no deeper.
+ *
+ * @author Jimmy
+ */
+public class NTuplePlayer implements AI {
+
+    final NTupleNetwork net;
+    final long[] moves = new long[4];
+
+    public NTuplePlayer(NTupleNetwork net) {
+        this.net = net;
+    }
+
+    /**
+     * Returns the best legal move of b, or -1 if there is none.
+     */
+    static int bestMove(NTupleNetwork net, long b, long[] moves) {
+        int legal = shiftAll(b, moves, 0);
+        int score = score(b, 0);
+        int bestMove = -1;
+        float best = 0;
+        for (int i = 0; i < 4; i++) {
+            if ((legal & (1 << i)) != 0) {
+                float v = score(moves[i], 0) - score + net.value(moves[i]);
+                if (bestMove < 0 || v > best) {
+                    best = v;
+                    bestMove = i;
+                }
+            }
+        }
+        return bestMove;
+    }
+
+    @Override
+    public int nextMove(long b) {
+        return Math.max(0, bestMove(net, b, moves));
+    }
+}
@@ -0,0 +1,141 @@
+package pkg2048;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trains an n-tuple network by self-play with TD(0) on afterstates: after
+ * each move, the value of the previous afterstate is moved towards the
+ * reward of this move plus the value of the new afterstate.
+ *
+ * Every thread plays its own games against the one shared network without
+ * locking (Hogwild), so training scales with cores at the cost of the odd
+ * lost update. Usage:
+ *
+ *   java pkg2048.NTupleTrainer [-games n] [-threads t] [-alpha a] [-tc]
+ *       [-tuples small|large] [-seed s] [-in file] [-out file]
+ *
+ * where -tc enables temporal coherence learning and -in continues training
+ * from saved weights. Progress is reported every 1000 games.
+ *
+ * @author Jimmy
+ */
+public class NTupleTrainer {
+
+    static final int REPORT = 1000;
+
+    final NTupleNetwork net;
+    final float alpha;
+    int played;
+    // over the last REPORT games
+    long totalScore;
+    int reached2048;
+
+    public NTupleTrainer(NTupleNetwork net, float alpha) {
+        this.net = net;
+        this.alpha = alpha;
+    }
+
+    /**
+     * Plays one game greedily with respect to the network, learning as it
+     * goes, and returns the finished game.
+     */
+    public GameState train(RandomSource rng) {
+        GameState game = new GameState(rng);
+        long[] moves = new long[4];
+        long prev = 0;
+        int move;
+        while ((move = NTuplePlayer.bestMove(net, game.board(), moves)) >= 0) {
+            long after = moves[move];
+            float reward = Board.score(after, 0) - Board.score(game.board(), 0);
+            if (prev != 0) {
+                net.update(prev,
+                        reward + net.value(after) - net.value(prev), alpha);
+            }
+            prev = after;
+            game.move(move);
+        }
+        if (prev != 0) {
+            net.update(prev, -net.value(prev), alpha);
+        }
+        return game;
+    }
+
+    /**
+     * Trains on games [0, games) of the run with the given seed.
+     */
+    public void run(long seed, int games, int threads)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < games) {
+                    report(train(RandomSource.seeded(
+                            Simulator.gameSeed(seed, i))), start);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    synchronized void report(GameState game, long start) {
+        totalScore += game.score();
+        if (GameState.maxRank(game.board()) >= 11) {
+            reached2048++;
+        }
+        int n = ++played;
+        if (n % REPORT == 0) {
+            System.err.println(String.format(Locale.ROOT,
+                    "%d games, mean score %.1f, 2048: %.1f%%, %.1f games/s",
+                    n, (double) totalScore / REPORT,
+                    100.0 * reached2048 / REPORT,
+                    n / ((System.nanoTime() - start) / 1e9)));
+            totalScore = 0;
+            reached2048 = 0;
+        }
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        int games = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float alpha = 0.0025f;
+        boolean coherence = false;
+        int[][] tuples = NTupleNetwork.SMALL;
+        long seed = 2048;
+        String in = null;
+        String out = "weights.bin";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-games": games = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-alpha": alpha = Float.parseFloat(args[++i]); break;
+                case "-tc": coherence = true; break;
+                case "-tuples":
+                    tuples = args[++i].equals("large")
+                            ? NTupleNetwork.LARGE : NTupleNetwork.SMALL;
+                    break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-in": in = args[++i]; break;
+                case "-out": out = args[++i]; break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        NTupleNetwork net = in == null
+                ? new NTupleNetwork(tuples) : NTupleNetwork.load(in);
+        if (coherence) {
+            net.enableCoherence();
+        }
+        new NTupleTrainer(net, alpha).run(seed, games, threads);
+        net.save(out);
+    }
+}
@@ -0,0 +1,268 @@
+package pkg2048;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pkg2048.Board.*;
+
+/**
+ * Precomputed moves for every early position, looked up by canonical
+ * board so one entry covers all 8 symmetric images.
+ *
+ * The file is a header (MAGIC, the largest tile sum covered, the entry
+ * count, the search depth and the heuristicKey() of the AI that searched
+ * them, as a length and UTF-8 bytes), the canonical boards as sorted
+ * big-endian longs and then one move byte per board. It is memory-mapped
+ * and searched in place, so lookups allocate nothing. Only an AI with the
+ * same heuristicKey() accepts a book, as another AI playing it would play
+ * the book's AI's openings. Usage, to build a book of every position
+ * reachable with tiles summing to at most maxSum:
+ *
+ *   java pkg2048.OpeningBook [-sum maxSum] [-depth d] [-threads t]
+ *       [-out file]
+ *
+ * @author Jimmy
+ */
+public class OpeningBook {
+
+    // books from before the heuristic key was recorded began 0x32424f4b
+    static final int MAGIC = 0x32424f4c;
+    static final int HEADER = 20;
+
+    final int maxSum;
+    final int size;
+    final String key;
+    final LongBuffer keys;
+    final ByteBuffer moves;
+
+    OpeningBook(ByteBuffer buf) throws IOException {
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("not an opening book");
+        }
+        maxSum = buf.getInt(4);
+        size = buf.getInt(8);
+        byte[] name = new byte[buf.getInt(16)];
+        buf.position(HEADER);
+        buf.get(name);
+        key = new String(name, StandardCharsets.UTF_8);
+        int start = HEADER + name.length;
+        keys = buf.slice().asLongBuffer();
+        buf.position(start + 8 * size);
+        moves = buf.slice();
+    }
+
+    public static OpeningBook load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf =
+                    ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new OpeningBook(buf);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the heuristicKey() of the AI that searched the book's moves.
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * Returns whether ai plays the positions in the book as the AI that
+     * built it did.
+     */
+    public boolean matches(Expectimax ai) {
+        return key.equals(ai.heuristicKey());
+    }
+
+    /**
+     * Returns the sum of the tiles on b, e.g. 8 for a 2, a 2 and a 4.
+     */
+    public static int tileSum(long b) {
+        int sum = 0;
+        for (; b != 0; b >>>= 4) {
+            int rank = (int) b & 0xf;
+            sum += rank == 0 ? 0 : 1 << rank;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the book move for b, or -1 if b is not in the book.
+     */
+    public int lookup(long b) {
+        if (tileSum(b) > maxSum) {
+            return -1;
+        }
+        int t = canonicalTransform(b);
+        long key = transform(b, t);
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = keys.get(mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return untransformMove(moves.get(mid), t);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the canonical forms of every live position reachable from the
+     * start of a game with tiles summing to at most maxSum, sorted.
+     */
+    static long[] reachable(int maxSum) {
+        HashSet<Long> seen = new HashSet<>();
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+        for (int i = 0; i < 16; i++) {
+            for (int j = i + 1; j < 16; j++) {
+                for (long a = 1; a <= 2; a++) {
+                    for (long c = 1; c <= 2; c++) {
+                        long b = canonical(a << (4 * i) | c << (4 * j));
+                        if (tileSum(b) <= maxSum && seen.add(b)) {
+                            queue.add(b);
+                        }
+                    }
+                }
+            }
+        }
+        long[] moved = new long[4];
+        while (!queue.isEmpty()) {
+            long b = queue.poll();
+            int legal = shiftAll(b, moved, 0);
+            for (int m = 0; m < 4; m++) {
+                if ((legal & (1 << m)) == 0) {
+                    continue;
+                }
+                long after = moved[m];
+                for (int i = 0; i < 16; i++) {
+                    if (((after >>> (4 * i)) & 0xf) != 0) {
+                        continue;
+                    }
+                    for (long rank = 1; rank <= 2; rank++) {
+                        long next = canonical(after | rank << (4 * i));
+                        if (tileSum(next) <= maxSum && seen.add(next)) {
+                            queue.add(next);
+                        }
+                    }
+                }
+            }
+        }
+        long[] boards = seen.stream().mapToLong(Long::longValue)
+                .filter(b -> !dead(b)).toArray();
+        Arrays.sort(boards);
+        return boards;
+    }
+
+    /**
+     * Searches every board with ImprovedExpectimax to the given depth on
+     * threads threads and returns the chosen moves. The book's key must be
+     * that AI's heuristicKey().
+     */
+    static byte[] search(long[] boards, int depth, int threads)
+            throws InterruptedException {
+        byte[] moves = new byte[boards.length];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                ImprovedExpectimax ai = new ImprovedExpectimax();
+                ai.setPool(new ForkJoinPool(1));
+                ai.setRandom(RandomSource.seeded(depth));
+                ai.probThresh = 0.0001f;
+                ai.depthLimit = depth;
+                ai.cacheLimit = depth;
+                int i;
+                while ((i = next.getAndIncrement()) < boards.length) {
+                    moves[i] = (byte) ai.findBestMove(boards[i]);
+                    int n = done.incrementAndGet();
+                    if (n % 10000 == 0) {
+                        System.err.println(String.format(Locale.ROOT,
+                                "%d/%d boards, %.1f s", n, boards.length,
+                                (System.nanoTime() - start) / 1e9));
+                    }
+                }
+                ai.pool.shutdown();
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return moves;
+    }
+
+    static void write(String file, int maxSum, int depth, String key,
+            long[] boards, byte[] moves) throws IOException {
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(maxSum);
+            out.writeInt(boards.length);
+            out.writeInt(depth);
+            out.writeInt(name.length);
+            out.write(name);
+            for (long b : boards) {
+                out.writeLong(b);
+            }
+            out.write(moves);
+        }
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        int maxSum = 24;
+        int depth = 5;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String out = "book.bin";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-sum": maxSum = Integer.parseInt(args[++i]); break;
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-out": out = args[++i]; break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        long start = System.nanoTime();
+        long[] boards = reachable(maxSum);
+        System.err.println(String.format(Locale.ROOT,
+                "%d positions up to tile sum %d, %.1f s", boards.length,
+                maxSum, (System.nanoTime() - start) / 1e9));
+        write(out, maxSum, depth, new ImprovedExpectimax().heuristicKey(),
+                boards, search(boards, depth, threads));
+        OpeningBook book = load(Paths.get(out));
+        System.err.println(String.format(Locale.ROOT,
+                "wrote %d moves to %s, %.1f s", book.size(), out,
+                (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,103 @@
+package pkg2048;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Verifies that pondering doesn't make deepen stop too early: plays a
+ * seeded game with pondering on and, at every position, also searches it
+ * with a fresh AI that doesn't ponder, both under the same node budget.
+ * Each ponder is left to finish before the next move, as if the opponent
+ * took its time.
+ *
+ * A search that stops because nothing was cut off by the depth limit has
+ * searched every line as far as the probability threshold allows, however
+ * low its last depth, so it must pick the move a complete search without
+ * pondering picks. One that runs out of budget must not have gone less
+ * deep than the search without pondering. Exits non-zero if either fails
+ * on more than a few positions.
+ *
+ * @author Jimmy
+ */
+public class PonderCheck {
+
+    static final long SEED = 2048;
+    static final int MOVES = 150;
+    static final long NODES = 200000;
+    // enough for a complete search of any position of the game
+    static final long COMPLETE_NODES = 50 * NODES;
+    // relative difference allowed between the root scores of complete
+    // searches
+    static final float TOLERANCE = 1e-3f;
+    // positions that may fail, for entries pondered under the previous
+    // position's probability threshold
+    static final int SLACK = MOVES / 50;
+
+    static ImprovedExpectimax newAI(RandomSource rng, long nodes) {
+        ImprovedExpectimax ai = new ImprovedExpectimax();
+        ai.setRandom(rng);
+        ai.setPool(new ForkJoinPool(1));
+        ai.setBudget(0, nodes);
+        return ai;
+    }
+
+    /**
+     * Returns whether the last deepen of ai stopped for lack of depth
+     * cutoffs rather than for lack of budget.
+     */
+    static boolean complete(Expectimax ai) {
+        for (SearchContext ctx : ai.contexts) {
+            if (ctx.stopped || ctx.depthCutoff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameScores(float[] a, float[] b) {
+        for (int i = 0; i < 4; i++) {
+            if (Math.abs(a[i] - b[i]) > TOLERANCE * Math.abs(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) {
+        RandomSource rng = RandomSource.seeded(SEED);
+        GameState game = new GameState(rng.split());
+        ImprovedExpectimax pondering = newAI(rng.split(), NODES);
+        pondering.setPondering(new ForkJoinPool(1), NODES / 4);
+        int early = 0;
+        int shallower = 0;
+        int moves = 0;
+        for (; moves < MOVES && !game.isLost(); moves++) {
+            long b = game.board();
+            ImprovedExpectimax plain = newAI(rng.split(), NODES);
+            plain.nextMove(b);
+            int move = pondering.nextMove(b);
+            if (complete(pondering)) {
+                if (!complete(plain)) {
+                    plain = newAI(rng.split(), COMPLETE_NODES);
+                    plain.nextMove(b);
+                }
+                if (complete(plain)
+                        && !sameScores(pondering.rootScores, plain.rootScores)) {
+                    early++;
+                }
+            } else if (pondering.depthLimit < plain.depthLimit) {
+                shallower++;
+            }
+            if (pondering.pondering != null) {
+                pondering.pondering.quietlyJoin();
+            }
+            game.move(move);
+        }
+        pondering.stopPondering();
+        System.out.println(moves + " moves with pondering: " + early
+                + " stopped early, " + shallower + " out of budget shallower");
+        if (early + shallower > SLACK) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,39 @@
+package pkg2048;
+
+/**
+ * Injectable source of randomness for tile spawns and AI tie-breaking.
+ *
+ * Implementations are not thread-safe; give each thread its own source,
+ * typically by calling split().
+ *
+ * @author Jimmy
+ */
+public interface RandomSource {
+
+    /**
+     * Returns a uniform int in [0, bound).
+     */
+    public int nextInt(int bound);
+
+    /**
+     * Returns a uniform double in [0, 1).
+     */
+    public double nextDouble();
+
+    /**
+     * Returns a new, statistically independent source and advances this
+     * one.
+     */
+    public RandomSource split();
+
+    public static RandomSource seeded(long seed) {
+        return new SplitRandom(seed);
+    }
+
+    /**
+     * Returns a source seeded from the clock, for interactive play.
+     */
+    public static RandomSource unseeded() {
+        return seeded(System.nanoTime() ^ 0x5DEECE66DL);
+    }
+}
@@ -0,0 +1,128 @@
+package pkg2048;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-thread state threaded through one expectimax search: the
+ * transposition table, preallocated buffers of move and spawn successors,
+ * four and 32 slots per ply, so expanding a node allocates nothing,
+ * buffers for the leaves of the frontier being evaluated, the search budget, and
+ * counters of the work done, which SearchMetrics collects.
+ *
+ * @author Jimmy
+ */
+public class SearchContext {
+
+    static final int MAX_DEPTH = 32;
+    // the spawns of all four moves of one move node
+    static final int FRONTIER = 4 * 32;
+
+    final TranspositionTable table;
+    final long[] moves = new long[4 * (MAX_DEPTH + 1)];
+    final long[] spawns = new long[32 * (MAX_DEPTH + 1)];
+    final long[] leaves = new long[FRONTIER];
+    final float[] leafValues = new float[FRONTIER];
+    final int[] leafRows = new int[LeafEvaluator.ROWS];
+    long deadline = Long.MAX_VALUE;
+    long nodeLimit = Long.MAX_VALUE;
+    long nodes;
+    long chanceNodes;
+    long heuristicEvals;
+    long cacheProbes;
+    long cacheHits;
+    long cacheStores;
+    long probPrunes;
+    long chanceCuts;
+    int maxDepth;
+    boolean stopped;
+    // set when some node was cut off by the depth limit rather than by
+    // probability, i.e. when searching deeper could change the result
+    boolean depthCutoff;
+    // when not null, another thread may set it to stop this search and
+    // its forks at their next budget check
+    AtomicBoolean cancel;
+    // the subtask contexts handed out by fork, one per empty cell
+    SearchContext[] forks;
+
+    public SearchContext(TranspositionTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the context for subtask i of ways parallel subtasks below this
+     * one. It shares the table and deadline and gets an equal part of the
+     * remaining node budget. The contexts are kept and handed out again by
+     * later forks, as a context's subtasks are always joined before it
+     * forks again; only the first fork of each subtask allocates.
+     */
+    SearchContext fork(int i, int ways) {
+        if (forks == null) {
+            forks = new SearchContext[16];
+        }
+        SearchContext child = forks[i];
+        if (child == null) {
+            child = forks[i] = new SearchContext(table);
+        }
+        child.clearCounters();
+        child.stopped = false;
+        child.depthCutoff = false;
+        child.deadline = deadline;
+        child.nodeLimit = nodeLimit == Long.MAX_VALUE
+                ? Long.MAX_VALUE : Math.max(0, nodeLimit - nodes) / ways;
+        child.cancel = cancel;
+        return child;
+    }
+
+    /**
+     * Folds a finished subtask's counts and flags back into this context.
+     */
+    void join(SearchContext child) {
+        nodes += child.nodes;
+        chanceNodes += child.chanceNodes;
+        heuristicEvals += child.heuristicEvals;
+        cacheProbes += child.cacheProbes;
+        cacheHits += child.cacheHits;
+        cacheStores += child.cacheStores;
+        probPrunes += child.probPrunes;
+        chanceCuts += child.chanceCuts;
+        maxDepth = Math.max(maxDepth, child.maxDepth);
+        stopped |= child.stopped;
+        depthCutoff |= child.depthCutoff;
+    }
+
+    void clearCounters() {
+        nodes = 0;
+        chanceNodes = 0;
+        heuristicEvals = 0;
+        cacheProbes = 0;
+        cacheHits = 0;
+        cacheStores = 0;
+        probPrunes = 0;
+        chanceCuts = 0;
+        maxDepth = 0;
+    }
+
+    /**
+     * Prepares for another search pass. The node count carries over, so a
+     * node limit covers every pass of an iterative deepening search.
+     */
+    void reset(long deadline, long nodeLimit) {
+        this.deadline = deadline;
+        this.nodeLimit = nodeLimit;
+        stopped = false;
+        depthCutoff = false;
+    }
+
+    /**
+     * Counts a node and returns whether the budget has run out. The clock is
+     * only read every 64 nodes, each of which expands a whole ply.
+     */
+    boolean expired() {
+        if ((++nodes & 63) == 0
+                && (nodes > nodeLimit || System.nanoTime() > deadline
+                        || cancel != null && cancel.get())) {
+            stopped = true;
+        }
+        return stopped;
+    }
+}
@@ -0,0 +1,215 @@
+package pkg2048;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work done by Expectimax searches and keeps a histogram of
+ * nextMove latencies. One instance may be shared by AIs on many threads.
+ *
+ * Searches count into plain fields of their SearchContexts and fold them
+ * in here once per move, so the recursion never touches shared counters.
+ * An AI without metrics skips even that.
+ *
+ * The histogram is log-linear, like HdrHistogram: each power of two of
+ * nanoseconds is split into SUB_BUCKETS buckets, giving percentiles within
+ * 1 / SUB_BUCKETS of the true value.
+ *
+ * @author Jimmy
+ */
+public class SearchMetrics implements SearchMetricsMBean {
+
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    final LongAdder moves = new LongAdder();
+    final LongAdder moveNodes = new LongAdder();
+    final LongAdder chanceNodes = new LongAdder();
+    final LongAdder heuristicEvals = new LongAdder();
+    final LongAdder cacheProbes = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheStores = new LongAdder();
+    final LongAdder probPrunes = new LongAdder();
+    final LongAdder chanceCuts = new LongAdder();
+    final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+    final AtomicLongArray latency = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in bucket i.
+     */
+    static long bucketValue(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int exp = i / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = i % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Records one nextMove call and the work its search contexts counted.
+     */
+    public void record(long nanos, SearchContext... contexts) {
+        moves.increment();
+        latency.incrementAndGet(bucket(nanos));
+        maxLatency.accumulate(nanos);
+        for (SearchContext ctx : contexts) {
+            moveNodes.add(ctx.nodes);
+            chanceNodes.add(ctx.chanceNodes);
+            heuristicEvals.add(ctx.heuristicEvals);
+            cacheProbes.add(ctx.cacheProbes);
+            cacheHits.add(ctx.cacheHits);
+            cacheStores.add(ctx.cacheStores);
+            probPrunes.add(ctx.probPrunes);
+            chanceCuts.add(ctx.chanceCuts);
+            maxDepth.accumulate(ctx.maxDepth);
+        }
+    }
+
+    /**
+     * Returns the latency in nanoseconds below which a fraction q of the
+     * recorded moves fall.
+     */
+    public long percentile(double q) {
+        long total = 0;
+        for (int i = 0; i < latency.length(); i++) {
+            total += latency.get(i);
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < latency.length(); i++) {
+            seen += latency.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(bucketValue(i), maxLatency.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server as
+     * pkg2048:type=SearchMetrics,name=name.
+     */
+    public SearchMetrics register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("pkg2048:type=SearchMetrics,name=" + name));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    @Override
+    public long getMoves() {
+        return moves.sum();
+    }
+
+    @Override
+    public long getMoveNodes() {
+        return moveNodes.sum();
+    }
+
+    @Override
+    public long getChanceNodes() {
+        return chanceNodes.sum();
+    }
+
+    @Override
+    public long getHeuristicEvals() {
+        return heuristicEvals.sum();
+    }
+
+    @Override
+    public long getCacheProbes() {
+        return cacheProbes.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheStores() {
+        return cacheStores.sum();
+    }
+
+    @Override
+    public long getProbPrunes() {
+        return probPrunes.sum();
+    }
+
+    @Override
+    public long getChanceCuts() {
+        return chanceCuts.sum();
+    }
+
+    @Override
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+    @Override
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"moves\": %d, \"moveNodes\": %d, "
+                + "\"chanceNodes\": %d, \"heuristicEvals\": %d, "
+                + "\"cacheProbes\": %d, \"cacheHits\": %d, "
+                + "\"cacheStores\": %d, \"probPrunes\": %d, "
+                + "\"chanceCuts\": %d, \"maxDepth\": %d, "
+                + "\"latencyMillis\": {\"p50\": %.3f, "
+                + "\"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, "
+                + "\"max\": %.3f}}",
+                getMoves(), getMoveNodes(), getChanceNodes(),
+                getHeuristicEvals(), getCacheProbes(), getCacheHits(),
+                getCacheStores(), getProbPrunes(), getChanceCuts(),
+                getMaxDepth(),
+                getLatencyP50Millis(), percentile(0.9) / 1e6,
+                getLatencyP99Millis(), percentile(0.999) / 1e6,
+                getLatencyMaxMillis());
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder a : new LongAdder[]{moves, moveNodes, chanceNodes,
+                heuristicEvals, cacheProbes, cacheHits, cacheStores,
+                probPrunes, chanceCuts}) {
+            a.reset();
+        }
+        maxDepth.reset();
+        maxLatency.reset();
+        for (int i = 0; i < latency.length(); i++) {
+            latency.set(i, 0);
+        }
+    }
+}
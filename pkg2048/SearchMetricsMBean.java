@@ -0,0 +1,39 @@
+package pkg2048;
+
+/**
+ * JMX view of SearchMetrics.
+ *
+ * @author Jimmy
+ */
+public interface SearchMetricsMBean {
+
+    public long getMoves();
+
+    public long getMoveNodes();
+
+    public long getChanceNodes();
+
+    public long getHeuristicEvals();
+
+    public long getCacheProbes();
+
+    public long getCacheHits();
+
+    public long getCacheStores();
+
+    public long getProbPrunes();
+
+    public long getChanceCuts();
+
+    public long getMaxDepth();
+
+    public double getLatencyP50Millis();
+
+    public double getLatencyP99Millis();
+
+    public double getLatencyMaxMillis();
+
+    public String toJson();
+
+    public void reset();
+}
@@ -0,0 +1,250 @@
+package pkg2048;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Splits a run of the Simulator into shards played by worker JVMs and
+ * merges their results.
+ *
+ * The run is planned in a directory: plan.properties holds the AI, seed,
+ * number of games, number of shards and per-move budget, and shard k,
+ * games [k * games / shards, (k + 1) * games / shards) of the run, is
+ * played by a ShardWorker into shard-k.csv. Games are seeded as in the
+ * Simulator, so the merged results are those of one Simulator run with
+ * the same seed. Usage:
+ *
+ *   java pkg2048.ShardCoordinator -dir d [-ai name] [-games n] [-seed s]
+ *       [-shards k] [-budget millis] [-workers w] [-threads t]
+ *       [-jvm arg]... [-out file]
+ *   java pkg2048.ShardCoordinator -dir d -merge [-out file]
+ *
+ * writes the plan if d has none, launches w worker JVMs on this host with
+ * t threads each, passing each -jvm argument to them, waits for them and
+ * merges. Rerunning it on the same directory resumes the run where it
+ * stopped; the plan's settings may not be changed. With -workers 0 it only
+ * writes the plan, for workers started by hand on hosts that share d, and
+ * -merge only merges: it prints each shard's progress and the combined
+ * Stats, writes every result in game order to -out, and exits with status
+ * 1 if any games are missing.
+ *
+ * @author Jimmy
+ */
+public class ShardCoordinator {
+
+    static final String PLAN = "plan.properties";
+
+    static Path shardFile(Path dir, int shard) {
+        return dir.resolve("shard-" + shard + ".csv");
+    }
+
+    /**
+     * Returns {first, end} of the games of shard.
+     */
+    static long[] range(long games, int shards, int shard) {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("No shard " + shard);
+        }
+        return new long[]{games * shard / shards,
+                games * (shard + 1) / shards};
+    }
+
+    static Properties loadPlan(Path dir) throws IOException {
+        Properties plan = new Properties();
+        try (Reader r = Files.newBufferedReader(dir.resolve(PLAN),
+                StandardCharsets.ISO_8859_1)) {
+            plan.load(r);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the results in the complete lines of a shard file's text.
+     */
+    static List<GameResult> parse(String text) {
+        List<GameResult> results = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty() && !line.equals(GameResult.csvHeader())) {
+                results.add(GameResult.fromCsv(line));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads the shard's complete records, or none if it has no file yet.
+     */
+    static List<GameResult> read(Path dir, int shard) throws IOException {
+        Path file = shardFile(dir, shard);
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        String text = new String(Files.readAllBytes(file),
+                StandardCharsets.US_ASCII);
+        // a record still being written is not complete
+        return parse(text.substring(0, text.lastIndexOf('\n') + 1));
+    }
+
+    /**
+     * Merges every shard's results into stats, printing each shard's
+     * progress, and writes them in game order to out if it is not null.
+     * Returns the number of games with no result.
+     */
+    static long merge(Path dir, Simulator.Stats stats, PrintWriter out)
+            throws IOException {
+        Properties plan = loadPlan(dir);
+        long seed = Long.parseLong(plan.getProperty("seed"));
+        long games = Long.parseLong(plan.getProperty("games"));
+        int shards = Integer.parseInt(plan.getProperty("shards"));
+        if (out != null) {
+            out.println(GameResult.csvHeader());
+        }
+        long missing = 0;
+        for (int k = 0; k < shards; k++) {
+            Map<Long, GameResult> bySeed = new HashMap<>();
+            for (GameResult r : read(dir, k)) {
+                bySeed.put(r.seed, r);
+            }
+            long[] range = range(games, shards, k);
+            long done = 0;
+            for (long i = range[0]; i < range[1]; i++) {
+                GameResult r = bySeed.get(Simulator.gameSeed(seed, i));
+                if (r == null) {
+                    continue;
+                }
+                done++;
+                stats.accept(r);
+                if (out != null) {
+                    out.println(r.toCsv());
+                }
+            }
+            missing += range[1] - range[0] - done;
+            System.err.println("shard " + k + ": " + done + " of "
+                    + (range[1] - range[0]) + " games");
+        }
+        return missing;
+    }
+
+    /**
+     * Starts a worker JVM on dir with this JVM's class path.
+     */
+    static Process launch(Path dir, int threads, List<String> jvmArgs)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+                .toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        command.add("-dir");
+        command.add(dir.toString());
+        command.add("-threads");
+        command.add(Integer.toString(threads));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        Path dir = null;
+        Properties given = new Properties();
+        int workers = 1;
+        Integer threads = null;
+        List<String> jvmArgs = new ArrayList<>();
+        boolean mergeOnly = false;
+        String out = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-dir": dir = Paths.get(args[++i]); break;
+                case "-ai": given.setProperty("ai", args[++i]); break;
+                case "-games": given.setProperty("games", args[++i]); break;
+                case "-seed": given.setProperty("seed", args[++i]); break;
+                case "-shards": given.setProperty("shards", args[++i]); break;
+                case "-budget": given.setProperty("budget", args[++i]); break;
+                case "-workers": workers = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-jvm": jvmArgs.add(args[++i]); break;
+                case "-merge": mergeOnly = true; break;
+                case "-out": out = args[++i]; break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        if (dir == null) {
+            throw new IllegalArgumentException("-dir is required");
+        }
+
+        if (Files.exists(dir.resolve(PLAN))) {
+            Properties plan = loadPlan(dir);
+            for (String key : given.stringPropertyNames()) {
+                if (!given.getProperty(key).equals(plan.getProperty(key))) {
+                    throw new IllegalArgumentException("The plan in " + dir
+                            + " has " + key + " " + plan.getProperty(key));
+                }
+            }
+        } else if (!mergeOnly) {
+            Properties plan = new Properties();
+            plan.setProperty("ai", given.getProperty("ai", "improved"));
+            plan.setProperty("games", given.getProperty("games", "100"));
+            plan.setProperty("seed", given.getProperty("seed", "2048"));
+            plan.setProperty("shards", given.getProperty("shards", "16"));
+            plan.setProperty("budget", given.getProperty("budget", "0"));
+            // fail here rather than in every worker
+            Simulator.aiFactory(plan.getProperty("ai"));
+            range(Long.parseLong(plan.getProperty("games")),
+                    Integer.parseInt(plan.getProperty("shards")), 0);
+            Files.createDirectories(dir);
+            try (Writer w = Files.newBufferedWriter(dir.resolve(PLAN),
+                    StandardCharsets.ISO_8859_1)) {
+                plan.store(w, "2048 simulation shards");
+            }
+        }
+
+        if (!mergeOnly) {
+            if (workers == 0) {
+                System.err.println("planned " + dir + "; start workers with "
+                        + "java pkg2048.ShardWorker -dir " + dir);
+                return;
+            }
+            int t = threads != null ? threads : Math.max(1,
+                    Runtime.getRuntime().availableProcessors() / workers);
+            List<Process> processes = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                processes.add(launch(dir, t, jvmArgs));
+            }
+            for (Process p : processes) {
+                if (p.waitFor() != 0) {
+                    System.err.println("a worker exited with status "
+                            + p.exitValue());
+                }
+            }
+        }
+
+        Simulator.Stats stats = new Simulator.Stats();
+        long missing;
+        if (out == null) {
+            missing = merge(dir, stats, null);
+        } else {
+            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(
+                    Paths.get(out), StandardCharsets.US_ASCII))) {
+                missing = merge(dir, stats, w);
+            }
+        }
+        System.err.println(stats);
+        if (missing > 0) {
+            System.err.println(missing + " games missing; rerun to resume");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package pkg2048;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Plays shards of a run planned by ShardCoordinator. Usage:
+ *
+ *   java pkg2048.ShardWorker -dir d [-shard k] [-threads t]
+ *
+ * plays shard k of the plan in directory d, or every shard no other worker
+ * holds. A shard's results are appended to its file one CSV record per
+ * game, as each game finishes, under an exclusive lock on the file, so
+ * workers on any hosts sharing d never play the same shard at once. A
+ * worker that finds records already there plays only the shard's other
+ * games, after cutting off a record left half written, so an interrupted
+ * shard resumes where it stopped.
+ *
+ * @author Jimmy
+ */
+public class ShardWorker {
+
+    final Path dir;
+    final long seed;
+    final long games;
+    final int shards;
+    final Simulator sim;
+
+    public ShardWorker(Path dir, int threads) throws IOException {
+        this.dir = dir;
+        Properties plan = ShardCoordinator.loadPlan(dir);
+        seed = Long.parseLong(plan.getProperty("seed"));
+        games = Long.parseLong(plan.getProperty("games"));
+        shards = Integer.parseInt(plan.getProperty("shards"));
+        sim = new Simulator(Simulator.configure(
+                Simulator.aiFactory(plan.getProperty("ai")),
+                Long.parseLong(plan.getProperty("budget")), null, null, 0),
+                threads);
+    }
+
+    /**
+     * Plays what is left of shard, unless another worker holds it. Returns
+     * false if one does.
+     */
+    public boolean play(int shard) throws IOException, InterruptedException {
+        try (FileChannel ch = FileChannel.open(
+                ShardCoordinator.shardFile(dir, shard),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+                FileLock lock = ch.tryLock()) {
+            if (lock == null) {
+                return false;
+            }
+            long[] left = remaining(ch, shard);
+            System.err.println("shard " + shard + ": " + left.length
+                    + " games left");
+            sim.run(seed, left, r -> {
+                try {
+                    append(ch, r.toCsv() + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * Returns the shard's games with no complete record in ch, truncating
+     * a partial last record and writing the header to an empty file.
+     */
+    long[] remaining(FileChannel ch, int shard) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        String text = new String(buf.array(), StandardCharsets.US_ASCII);
+        int end = text.lastIndexOf('\n') + 1;
+        if (end < text.length()) {
+            ch.truncate(end);
+        }
+        if (end == 0) {
+            append(ch, GameResult.csvHeader() + "\n");
+        }
+        Set<Long> done = new HashSet<>();
+        for (GameResult r : ShardCoordinator.parse(text.substring(0, end))) {
+            done.add(r.seed);
+        }
+        long[] range = ShardCoordinator.range(games, shards, shard);
+        long[] left = new long[(int) (range[1] - range[0])];
+        int n = 0;
+        for (long i = range[0]; i < range[1]; i++) {
+            if (!done.contains(Simulator.gameSeed(seed, i))) {
+                left[n++] = i;
+            }
+        }
+        return Arrays.copyOf(left, n);
+    }
+
+    /**
+     * Appends line in one write and forces it to disk, so a crash loses
+     * at most the record being written.
+     */
+    static synchronized void append(FileChannel ch, String line)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(
+                line.getBytes(StandardCharsets.US_ASCII));
+        long pos = ch.size();
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        ch.force(false);
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        Path dir = null;
+        int shard = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-dir": dir = Paths.get(args[++i]); break;
+                case "-shard": shard = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        if (dir == null) {
+            throw new IllegalArgumentException("-dir is required");
+        }
+        ShardWorker worker = new ShardWorker(dir, threads);
+        if (shard >= 0) {
+            if (!worker.play(shard)) {
+                System.err.println("shard " + shard + " is held by another "
+                        + "worker");
+            }
+            return;
+        }
+        for (int k = 0; k < worker.shards; k++) {
+            worker.play(k);
+        }
+    }
+}
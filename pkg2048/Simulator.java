@@ -0,0 +1,350 @@
+package pkg2048;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Plays many headless games of one AI across all cores.
+ *
+ * Game i of a run with seed s is seeded with gameSeed(s, i). Spawns and
+ * the AI's own randomness are split from that seed, so any game can be
+ * replayed exactly from the seed in its result. Usage:
+ *
+ *   java pkg2048.Simulator [-ai name] [-games n] [-seed s] [-threads t]
+ *       [-budget millis] [-metrics] [-book file] [-log file] [-out file]
+ *       [-ponder nodes] [-pace millis]
+ *   java pkg2048.Simulator [-ai name] [-budget millis] -replay gameSeed
+ *
+ * where replaying prints every position of the game as a hex board,
+ * -budget gives the expectimax and montecarlo AIs a per-move time budget,
+ * and -metrics publishes the expectimax AIs' SearchMetrics over JMX and
+ * prints them at the end.
+ * -book plays early moves from an OpeningBook built for the same AI, and
+ * -log appends every game to a GameLog with each move's search score and
+ * latency. The n-tuple AIs take a weights file from NTupleTrainer, e.g.
+ * -ai ntuple:weights.bin or -ai ntuple-expectimax:weights.bin, and
+ * -ai improved:w1,...,w7 plays ImprovedExpectimax with HeuristicWeights
+ * from WeightTuner. -pace waits between moves as an interactive game
+ * would, and -ponder has the expectimax AIs search the likely next
+ * positions meanwhile, at most nodes nodes each.
+ *
+ * @author Jimmy
+ */
+public class Simulator {
+
+    // a game whose AI keeps choosing illegal moves is abandoned
+    static final int MAX_STALLS = 1000;
+
+    final Function<RandomSource, AI> factory;
+    final int threads;
+    GameLog log;
+    long paceMillis;
+
+    public Simulator(Function<RandomSource, AI> factory, int threads) {
+        this.factory = factory;
+        this.threads = threads;
+    }
+
+    /**
+     * Records every game run plays to log, or none if log is null.
+     */
+    public void setLog(GameLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Waits millis before every move, like a player watching the game.
+     */
+    public void setPace(long millis) {
+        paceMillis = millis;
+    }
+
+    public static Function<RandomSource, AI> aiFactory(String name) {
+        switch (name) {
+            case "random": return AI::randomPlayer;
+            case "naive": return AI::naivePlayer;
+            case "expectimax": return rng -> withRandom(new Expectimax(), rng);
+            case "improved":
+                return rng -> withRandom(new ImprovedExpectimax(), rng);
+            case "montecarlo": return MonteCarlo::new;
+            default:
+                break;
+        }
+        // players may be named with their weights, e.g. ntuple:w.bin or
+        // improved:200000,4,47,3.5,11,700,270
+        int colon = name.indexOf(':');
+        String path = name.substring(colon + 1);
+        switch (name.substring(0, Math.max(0, colon))) {
+            case "improved":
+                HeuristicWeights weights = HeuristicWeights.parse(path);
+                return rng -> withRandom(new ImprovedExpectimax(weights), rng);
+            case "ntuple":
+                return rng -> new NTuplePlayer(NTupleNetwork.loadShared(path));
+            case "ntuple-expectimax":
+                return rng -> withRandom(new NTupleExpectimax(
+                        NTupleNetwork.loadShared(path), 2), rng);
+            default:
+                throw new IllegalArgumentException("Unknown AI: " + name);
+        }
+    }
+
+    static AI withRandom(Expectimax ai, RandomSource rng) {
+        ai.setRandom(rng);
+        return ai;
+    }
+
+    static Function<RandomSource, AI> configure(
+            Function<RandomSource, AI> factory, long millis,
+            SearchMetrics metrics, OpeningBook book, long ponderNodes) {
+        ForkJoinPool ponderPool = ponderNodes > 0 ? new ForkJoinPool() : null;
+        return rng -> {
+            AI ai = factory.apply(rng);
+            if (ai instanceof Expectimax) {
+                ((Expectimax) ai).setBudget(millis * 1000000, 0);
+                ((Expectimax) ai).setMetrics(metrics);
+                ((Expectimax) ai).setOpeningBook(book);
+                ((Expectimax) ai).setPondering(ponderPool, ponderNodes);
+            } else if (ai instanceof MonteCarlo && millis > 0) {
+                ((MonteCarlo) ai).setBudget(millis * 1000000, 0);
+            }
+            return ai;
+        };
+    }
+
+    /**
+     * SplitMix64 finalizer over seed + index, so neighbouring games get
+     * unrelated seeds.
+     */
+    public static long gameSeed(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Plays one game seeded with gameSeed, passing each position to
+     * positions if it is not null.
+     */
+    public static GameResult play(Function<RandomSource, AI> factory,
+            long gameSeed, Consumer<GameState> positions) {
+        return play(factory, gameSeed, positions, null);
+    }
+
+    /**
+     * Plays one game as above and also records it to log, if not null.
+     */
+    public static GameResult play(Function<RandomSource, AI> factory,
+            long gameSeed, Consumer<GameState> positions, GameLog log) {
+        RandomSource rng = RandomSource.seeded(gameSeed);
+        GameState game = new GameState(rng.split());
+        AI ai = factory.apply(rng.split());
+        GameLog.Recorder rec =
+                log == null ? null : log.startGame(gameSeed, game.board());
+        long start = System.nanoTime();
+        int stalls = 0;
+        while (!game.isLost() && stalls < MAX_STALLS) {
+            if (positions != null) {
+                positions.accept(game);
+            }
+            long moveStart = System.nanoTime();
+            int move = ai.nextMove(game.board());
+            long nanos = System.nanoTime() - moveStart;
+            if (!game.move(move)) {
+                stalls++;
+                continue;
+            }
+            stalls = 0;
+            if (rec != null) {
+                rec.move(move, game.lastSpawn(), ai instanceof Expectimax
+                        ? ((Expectimax) ai).rootScores[move] : Float.NaN,
+                        nanos);
+            }
+        }
+        if (ai instanceof Expectimax) {
+            ((Expectimax) ai).stopPondering();
+        }
+        if (rec != null) {
+            try {
+                rec.finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new GameResult(gameSeed, game.score(),
+                GameState.maxRank(game.board()), game.moves(),
+                System.nanoTime() - start, game.foursSpawned());
+    }
+
+    /**
+     * Plays games [first, first + count) of the run with the given seed and
+     * passes each result to sink as it finishes. Results arrive in
+     * completion order; sink must be thread-safe.
+     */
+    public void run(long seed, long first, int count,
+            Consumer<GameResult> sink) throws InterruptedException {
+        long[] games = new long[count];
+        for (int i = 0; i < count; i++) {
+            games[i] = first + i;
+        }
+        run(seed, games, sink);
+    }
+
+    /**
+     * Plays the given games of the run with the given seed, as above.
+     */
+    public void run(long seed, long[] games, Consumer<GameResult> sink)
+            throws InterruptedException {
+        int count = games.length;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        Consumer<GameState> pace = paceMillis <= 0 ? null : g -> {
+            try {
+                Thread.sleep(paceMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    sink.accept(play(factory, gameSeed(seed, games[i]),
+                            pace, log));
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Aggregates results into win rates for the 2048, 4096 and 8192 tiles.
+     */
+    public static class Stats implements Consumer<GameResult> {
+
+        long games;
+        long totalScore;
+        long totalMoves;
+        long totalNanos;
+        final long[] reached = new long[16];
+
+        @Override
+        public synchronized void accept(GameResult r) {
+            games++;
+            totalScore += r.score;
+            totalMoves += r.moves;
+            totalNanos += r.wallNanos;
+            for (int rank = 0; rank <= r.maxRank; rank++) {
+                reached[rank]++;
+            }
+        }
+
+        public synchronized double rate(int rank) {
+            return games == 0 ? 0 : (double) reached[rank] / games;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT,
+                    "%d games, mean score %.1f, %.1f moves/s; "
+                    + "2048: %.2f%%, 4096: %.2f%%, 8192: %.2f%%",
+                    games, (double) totalScore / Math.max(1, games),
+                    totalMoves / Math.max(1e-9, totalNanos / 1e9),
+                    100 * rate(11), 100 * rate(12), 100 * rate(13));
+        }
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        String name = "improved";
+        int games = 100;
+        long seed = 2048;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String out = null;
+        Long replay = null;
+        long budget = 0;
+        SearchMetrics metrics = null;
+        String logFile = null;
+        OpeningBook book = null;
+        long ponderNodes = 0;
+        long pace = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-ai": name = args[++i]; break;
+                case "-games": games = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-out": out = args[++i]; break;
+                case "-replay": replay = Long.parseLong(args[++i]); break;
+                case "-budget": budget = Long.parseLong(args[++i]); break;
+                case "-log": logFile = args[++i]; break;
+                case "-ponder": ponderNodes = Long.parseLong(args[++i]); break;
+                case "-pace": pace = Long.parseLong(args[++i]); break;
+                case "-book":
+                    book = OpeningBook.load(Paths.get(args[++i]));
+                    break;
+                case "-metrics":
+                    metrics = new SearchMetrics().register("simulator");
+                    break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+
+        if (book != null) {
+            AI probe = aiFactory(name).apply(RandomSource.seeded(seed));
+            if (probe instanceof Expectimax
+                    && !book.matches((Expectimax) probe)) {
+                throw new IllegalArgumentException("-book was built for "
+                        + book.key() + ", not -ai " + name);
+            }
+        }
+        Function<RandomSource, AI> factory =
+                configure(aiFactory(name), budget, metrics, book,
+                        ponderNodes);
+        if (replay != null) {
+            GameResult r = play(factory, replay, g ->
+                    System.out.println(String.format("%016x", g.board())));
+            System.out.println(GameResult.csvHeader());
+            System.out.println(r.toCsv());
+            if (metrics != null) {
+                System.out.println(metrics.toJson());
+            }
+            return;
+        }
+
+        Stats stats = new Stats();
+        Simulator sim = new Simulator(factory, threads);
+        try (PrintWriter w = out == null
+                ? new PrintWriter(System.out, true)
+                : new PrintWriter(new FileWriter(out));
+                GameLog log = logFile == null
+                ? null : new GameLog(Paths.get(logFile), true)) {
+            sim.setLog(log);
+            sim.setPace(pace);
+            w.println(GameResult.csvHeader());
+            sim.run(seed, 0, games, r -> {
+                stats.accept(r);
+                synchronized (w) {
+                    w.println(r.toCsv());
+                }
+            });
+        }
+        System.err.println(stats);
+        if (metrics != null) {
+            System.err.println(metrics.toJson());
+        }
+    }
+}
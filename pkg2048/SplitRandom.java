@@ -0,0 +1,37 @@
+package pkg2048;
+
+import java.util.SplittableRandom;
+
+/**
+ * RandomSource backed by java.util.SplittableRandom, which is unsynchronized
+ * and reproducible from its seed.
+ *
+ * @author Jimmy
+ */
+public class SplitRandom implements RandomSource {
+
+    final SplittableRandom rng;
+
+    public SplitRandom(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    SplitRandom(SplittableRandom rng) {
+        this.rng = rng;
+    }
+
+    @Override
+    public int nextInt(int bound) {
+        return rng.nextInt(bound);
+    }
+
+    @Override
+    public double nextDouble() {
+        return rng.nextDouble();
+    }
+
+    @Override
+    public RandomSource split() {
+        return new SplitRandom(rng.split());
+    }
+}
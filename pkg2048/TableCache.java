@@ -0,0 +1,144 @@
+package pkg2048;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds each 65,536-entry row table once per JVM and hands the same array
+ * to every AI asking for the same key, so only the first Expectimax of a
+ * kind pays for heuristicRow.
+ *
+ * If the pkg2048.tableCache system property names a directory, tables are
+ * also saved there and later JVMs map them instead of rebuilding; if
+ * saving fails, the table is still used from memory. The key
+ * must capture everything the table depends on, e.g. the heuristic's class
+ * and weights. Callers must not modify the returned arrays.
+ *
+ * A file's name adds to the key a fingerprint of the row function, hashed
+ * from SAMPLES of its rows, so editing a heuristic makes later JVMs rebuild
+ * rather than load its stale table. Changes the samples miss need VERSION
+ * bumped. Mapped tables are copied onto the heap rather than searched in
+ * place: the 256 KB copy takes well under a millisecond, and keeps
+ * heuristic's eight lookups per leaf on a plain float[].
+ *
+ * @author Jimmy
+ */
+public class TableCache {
+
+    public interface RowFunction {
+        public float apply(int row);
+    }
+
+    static final int SIZE = 1 << 16;
+    // bump to invalidate every table on disk
+    static final int VERSION = 1;
+    static final int SAMPLES = 64;
+    static final ConcurrentHashMap<String, float[]> TABLES =
+            new ConcurrentHashMap<>();
+
+    public static float[] floats(String key, RowFunction f) {
+        return TABLES.computeIfAbsent(key, k -> load(k, f));
+    }
+
+    /**
+     * Forgets the table for key, e.g. one built for a candidate that is no
+     * longer needed. AIs already holding it are unaffected.
+     */
+    public static void evict(String key) {
+        TABLES.remove(key);
+    }
+
+    static float[] build(RowFunction f) {
+        float[] table = new float[SIZE];
+        for (int x = 0; x < SIZE; x++) {
+            table[x] = f.apply(x);
+        }
+        return table;
+    }
+
+    static float[] load(String key, RowFunction f) {
+        String dir = System.getProperty("pkg2048.tableCache");
+        if (dir == null) {
+            return build(f);
+        }
+        Path file = Paths.get(dir, fileName(key, fingerprint(f)));
+        try {
+            if (Files.size(file) == 4L * SIZE) {
+                return read(file);
+            }
+        } catch (IOException e) {
+            // missing or unreadable: rebuild it and write it over
+        }
+        float[] table = build(f);
+        try {
+            write(file, table);
+        } catch (IOException e) {
+            // the disk copy only speeds up later JVMs
+            System.err.println("could not cache table in " + file + ": " + e);
+        }
+        return table;
+    }
+
+    /**
+     * Hashes VERSION and SAMPLES rows of f spread over the whole table, with
+     * every tile rank in every position.
+     */
+    static int fingerprint(RowFunction f) {
+        int h = VERSION;
+        for (int i = 0; i < SAMPLES; i++) {
+            // an odd multiplier visits distinct, well-mixed rows
+            int row = (i * 0x4F1B) & (SIZE - 1);
+            h = 31 * h + Float.floatToIntBits(f.apply(row));
+        }
+        return h;
+    }
+
+    static String fileName(String key, int fingerprint) {
+        return key.replaceAll("[^A-Za-z0-9_.-]", "_") + "-"
+                + Integer.toHexString(key.hashCode()) + "-"
+                + Integer.toHexString(fingerprint) + ".tbl";
+    }
+
+    static FloatBuffer map(FileChannel ch, FileChannel.MapMode mode)
+            throws IOException {
+        MappedByteBuffer buf = ch.map(mode, 0, 4L * SIZE);
+        return buf.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    static float[] read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            float[] table = new float[SIZE];
+            map(ch, FileChannel.MapMode.READ_ONLY).get(table);
+            return table;
+        }
+    }
+
+    /**
+     * Writes to a temporary file and renames it, so concurrent JVMs never
+     * map a partly written table.
+     */
+    static void write(Path file, float[] table) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), "table", ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                map(ch, FileChannel.MapMode.READ_WRITE).put(table);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+}
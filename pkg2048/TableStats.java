@@ -0,0 +1,41 @@
+package pkg2048;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of a transposition table's counters.
+ *
+ * A collision is a store that found its probe window full of other live
+ * boards, and so either evicted one of them or was dropped.
+ *
+ * @author Jimmy
+ */
+public class TableStats {
+
+    public final long probes;
+    public final long hits;
+    public final long stores;
+    public final long collisions;
+
+    public TableStats(long probes, long hits, long stores, long collisions) {
+        this.probes = probes;
+        this.hits = hits;
+        this.stores = stores;
+        this.collisions = collisions;
+    }
+
+    public double hitRate() {
+        return probes == 0 ? 0 : (double) hits / probes;
+    }
+
+    public double collisionRate() {
+        return stores == 0 ? 0 : (double) collisions / stores;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%d probes, %.2f%% hits, %d stores, %.2f%% collisions",
+                probes, 100 * hitRate(), stores, 100 * collisionRate());
+    }
+}
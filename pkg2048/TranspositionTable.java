@@ -0,0 +1,52 @@
+package pkg2048;
+
+/**
+ * Cache of search results keyed on the packed 64-bit board.
+ *
+ * Each entry remembers the remaining depth and the probability of the node
+ * it was computed for, so a lookup only hits when the stored result was
+ * searched at least as thoroughly as the caller is about to search.
+ *
+ * @author Jimmy
+ */
+public interface TranspositionTable {
+
+    /**
+     * Returns the cached score for b, or NaN if there is no entry searched
+     * to at least depth plies with at least cprob probability.
+     */
+    public float get(long b, int depth, float cprob);
+
+    /**
+     * Returns whether the depth limit cut off some line below the entry for
+     * b, so that a deeper search could change its score, or true if b has
+     * no entry.
+     */
+    public boolean depthCut(long b);
+
+    /**
+     * Stores score for b, searched to depth plies with cprob probability.
+     * cut tells whether the depth limit cut off any line below b.
+     */
+    public void put(long b, int depth, float cprob, float score,
+            boolean cut);
+
+    public void clear();
+
+    /**
+     * Starts a new search that keeps the current entries readable, but
+     * lets stores evict them ahead of entries from the new search.
+     */
+    public void age();
+
+    /**
+     * Returns the counters since the last resetStats(), or null if this
+     * table doesn't count.
+     */
+    public default TableStats stats() {
+        return null;
+    }
+
+    public default void resetStats() {
+    }
+}
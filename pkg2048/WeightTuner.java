@@ -0,0 +1,231 @@
+package pkg2048;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Tunes HeuristicWeights with a separable CMA-ES, scoring each candidate by
+ * the mean score of headless games of ImprovedExpectimax at a fixed depth,
+ * played on all cores.
+ *
+ * Candidates are searched in log space around the defaults, weight i being
+ * DEFAULT_i * exp(x_i), so every weight stays positive and moves on the
+ * same scale. All candidates of a generation play the same game seeds. A
+ * candidate is abandoned once a quarter of its games, and at least 4, are
+ * in and its mean plus two standard errors is below the best candidate of
+ * the generation so far. Usage:
+ *
+ *   java pkg2048.WeightTuner [-depth d] [-games n] [-generations g]
+ *       [-lambda l] [-sigma s] [-threads t] [-seed s]
+ *
+ * Each generation's best weights are printed in the form
+ * Simulator -ai improved:weights accepts.
+ *
+ * @author Jimmy
+ */
+public class WeightTuner {
+
+    static final float[] BASE = HeuristicWeights.DEFAULT.toArray();
+    static final int N = BASE.length;
+    // games needed before a candidate's standard error means anything
+    static final int MIN_GAMES = 4;
+
+    final int depth;
+    final int games;
+    final int threads;
+    long gamesPlayed;
+    long gamesSkipped;
+
+    public WeightTuner(int depth, int games, int threads) {
+        this.depth = depth;
+        this.games = games;
+        this.threads = threads;
+    }
+
+    static HeuristicWeights weights(double[] x) {
+        float[] w = new float[N];
+        for (int i = 0; i < N; i++) {
+            w[i] = (float) (BASE[i] * Math.exp(x[i]));
+        }
+        return HeuristicWeights.fromArray(w);
+    }
+
+    /**
+     * Returns the mean score of w over games seeded from seed, or of the
+     * games played before it fell clearly below bar.
+     */
+    public double evaluate(HeuristicWeights w, long seed, double bar)
+            throws InterruptedException {
+        Function<RandomSource, AI> factory = rng -> {
+            ImprovedExpectimax ai = new ImprovedExpectimax(w);
+            ai.setFixedDepth(depth);
+            ai.setRandom(rng);
+            return ai;
+        };
+        Simulator sim = new Simulator(factory, threads);
+        double[] sums = new double[2];
+        int played = 0;
+        while (played < games) {
+            int batch = Math.min(threads, games - played);
+            sim.run(seed, played, batch, r -> {
+                synchronized (sums) {
+                    sums[0] += r.score;
+                    sums[1] += (double) r.score * r.score;
+                }
+            });
+            played += batch;
+            double mean = sums[0] / played;
+            double var = Math.max(0, sums[1] / played - mean * mean);
+            if (played >= Math.max(MIN_GAMES, games / 4) && played < games
+                    && mean + 2 * Math.sqrt(var / played) < bar) {
+                gamesSkipped += games - played;
+                break;
+            }
+        }
+        gamesPlayed += played;
+        TableCache.evict(ImprovedExpectimax.key(w));
+        return sums[0] / played;
+    }
+
+    /**
+     * Runs sep-CMA-ES for the given number of generations of lambda
+     * candidates, starting from the defaults with step size sigma, and
+     * returns the best weights of the last generation.
+     */
+    public HeuristicWeights tune(int generations, int lambda, double sigma,
+            long seed) throws InterruptedException {
+        Random rng = new Random(seed);
+        int mu = lambda / 2;
+        double[] wts = new double[mu];
+        double sum = 0;
+        for (int i = 0; i < mu; i++) {
+            wts[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+            sum += wts[i];
+        }
+        double sumSq = 0;
+        for (int i = 0; i < mu; i++) {
+            wts[i] /= sum;
+            sumSq += wts[i] * wts[i];
+        }
+        double muEff = 1 / sumSq;
+        double cs = (muEff + 2) / (N + muEff + 5);
+        double ds = 1 + 2 * Math.max(0, Math.sqrt((muEff - 1) / (N + 1)) - 1)
+                + cs;
+        double cc = (4 + muEff / N) / (N + 4 + 2 * muEff / N);
+        // the separable variant may learn its diagonal (N + 2) / 3 faster
+        double c1 = (N + 2) / 3.0 * 2 / ((N + 1.3) * (N + 1.3) + muEff);
+        double cmu = Math.min(1 - c1, (N + 2) / 3.0
+                * 2 * (muEff - 2 + 1 / muEff) / ((N + 2) * (N + 2) + muEff));
+        double chiN = Math.sqrt(N) * (1 - 1.0 / (4 * N) + 1.0 / (21 * N * N));
+
+        double[] mean = new double[N];
+        double[] c = new double[N];
+        Arrays.fill(c, 1);
+        double[] ps = new double[N];
+        double[] pc = new double[N];
+        double[][] y = new double[lambda][N];
+        double[] fitness = new double[lambda];
+        Integer[] order = new Integer[lambda];
+        HeuristicWeights best = HeuristicWeights.DEFAULT;
+
+        for (int g = 0; g < generations; g++) {
+            long genSeed = Simulator.gameSeed(seed, g);
+            double bar = Double.NEGATIVE_INFINITY;
+            long start = System.nanoTime();
+            for (int k = 0; k < lambda; k++) {
+                double[] x = new double[N];
+                for (int i = 0; i < N; i++) {
+                    y[k][i] = Math.sqrt(c[i]) * rng.nextGaussian();
+                    x[i] = mean[i] + sigma * y[k][i];
+                }
+                fitness[k] = evaluate(weights(x), genSeed, bar);
+                bar = Math.max(bar, fitness[k]);
+                order[k] = k;
+            }
+            Arrays.sort(order,
+                    (a, b) -> Double.compare(fitness[b], fitness[a]));
+            double[] best0 = new double[N];
+            for (int i = 0; i < N; i++) {
+                best0[i] = mean[i] + sigma * y[order[0]][i];
+            }
+            best = weights(best0);
+
+            double[] yw = new double[N];
+            for (int j = 0; j < mu; j++) {
+                for (int i = 0; i < N; i++) {
+                    yw[i] += wts[j] * y[order[j]][i];
+                }
+            }
+            double psNorm = 0;
+            for (int i = 0; i < N; i++) {
+                mean[i] += sigma * yw[i];
+                ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * muEff)
+                        * yw[i] / Math.sqrt(c[i]);
+                psNorm += ps[i] * ps[i];
+            }
+            psNorm = Math.sqrt(psNorm);
+            boolean hs = psNorm / Math.sqrt(1 - Math.pow(1 - cs, 2 * (g + 1)))
+                    < (1.4 + 2.0 / (N + 1)) * chiN;
+            for (int i = 0; i < N; i++) {
+                pc[i] = (1 - cc) * pc[i] + (hs ? 1 : 0)
+                        * Math.sqrt(cc * (2 - cc) * muEff) * yw[i];
+                double rankMu = 0;
+                for (int j = 0; j < mu; j++) {
+                    rankMu += wts[j] * y[order[j]][i] * y[order[j]][i];
+                }
+                c[i] = (1 - c1 - cmu) * c[i]
+                        + c1 * (pc[i] * pc[i]
+                                + (hs ? 0 : cc * (2 - cc) * c[i]))
+                        + cmu * rankMu;
+            }
+            sigma *= Math.exp(cs / ds * (psNorm / chiN - 1));
+
+            System.err.println(String.format(Locale.ROOT,
+                    "generation %d: best %.1f, median %.1f, sigma %.3f, "
+                    + "%.1f s, %d games played, %d skipped",
+                    g, fitness[order[0]], fitness[order[lambda / 2]], sigma,
+                    (System.nanoTime() - start) / 1e9, gamesPlayed,
+                    gamesSkipped));
+            System.out.println(best);
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int depth = 2;
+        int games = 32;
+        int generations = 20;
+        int lambda = 4 + (int) (3 * Math.log(N));
+        double sigma = 0.3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 2048;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-games": games = Integer.parseInt(args[++i]); break;
+                case "-generations":
+                    generations = Integer.parseInt(args[++i]);
+                    break;
+                case "-lambda": lambda = Integer.parseInt(args[++i]); break;
+                case "-sigma": sigma = Double.parseDouble(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }
+        WeightTuner tuner = new WeightTuner(depth, games, threads);
+        HeuristicWeights best = tuner.tune(generations, lambda, sigma, seed);
+        // compare on games none of the candidates played
+        long test = Simulator.gameSeed(seed, -1);
+        System.err.println(String.format(Locale.ROOT,
+                "held-out mean score at depth %d: default %.1f, tuned %.1f",
+                depth,
+                tuner.evaluate(HeuristicWeights.DEFAULT, test,
+                        Double.NEGATIVE_INFINITY),
+                tuner.evaluate(best, test, Double.NEGATIVE_INFINITY)));
+        System.out.println(best);
+    }
+}
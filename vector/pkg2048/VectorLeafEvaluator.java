@@ -0,0 +1,90 @@
+package pkg2048;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * LeafEvaluator over the Vector API: transposes a vector of boards lane
+ * by lane, narrows each of their 8 lines to an int index and gathers the
+ * table entries for all lanes at once. Boards left over after the last
+ * full vector are summed by Board.sumLines. Loaded by LeafEvaluator.load.
+ *
+ * @author Jimmy
+ */
+final class VectorLeafEvaluator implements LeafEvaluator {
+
+    static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    // as many int and float lanes as long lanes
+    static final VectorShape NARROW =
+            VectorShape.forBitSize(LONGS.length() * 32);
+    static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, NARROW);
+    static final VectorSpecies<Float> FLOATS =
+            VectorSpecies.of(float.class, NARROW);
+    static final int LANES = LONGS.length();
+
+    VectorLeafEvaluator() {
+        if (8 * LANES > ROWS) {
+            throw new UnsupportedOperationException(LANES + " lanes");
+        }
+    }
+
+    @Override
+    public void sumLines(float[] table, float bias, long[] boards, int n,
+            float[] out, int[] rows) {
+        int i = 0;
+        for (; i <= n - LANES; i += LANES) {
+            LongVector b = LongVector.fromArray(LONGS, boards, i);
+            LongVector t = transpose(b);
+            // the same order as Board.sumLines, so sums round alike
+            index(b, 48, rows, 0);
+            index(b, 32, rows, LANES);
+            index(b, 16, rows, 2 * LANES);
+            index(b, 0, rows, 3 * LANES);
+            index(t, 48, rows, 4 * LANES);
+            index(t, 32, rows, 5 * LANES);
+            index(t, 16, rows, 6 * LANES);
+            index(t, 0, rows, 7 * LANES);
+            FloatVector sum = FloatVector.fromArray(FLOATS, table, 0, rows, 0);
+            for (int k = 1; k < 8; k++) {
+                sum = sum.add(FloatVector.fromArray(
+                        FLOATS, table, 0, rows, k * LANES));
+            }
+            FloatVector.broadcast(FLOATS, bias).add(sum).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            out[i] = bias + Board.sumLines(boards[i], table);
+        }
+    }
+
+    /**
+     * Writes the row of each lane's board starting at bit shift to rows
+     * from off.
+     */
+    static void index(LongVector b, int shift, int[] rows, int off) {
+        ((IntVector) b.lanewise(VectorOperators.LSHR, shift)
+                .and(Board.ROW_MASK)
+                .convertShape(VectorOperators.L2I, INTS, 0))
+                .intoArray(rows, off);
+    }
+
+    /**
+     * Board.transpose of every lane.
+     */
+    static LongVector transpose(LongVector x) {
+        LongVector a1 = x.and(0xF0F00F0FF0F00F0FL);
+        LongVector a2 = x.and(0x0000F0F00000F0F0L);
+        LongVector a3 = x.and(0x0F0F00000F0F0000L);
+        LongVector a = a1.or(a2.lanewise(VectorOperators.LSHL, 12))
+                .or(a3.lanewise(VectorOperators.LSHR, 12));
+        LongVector b1 = a.and(0xFF00FF0000FF00FFL);
+        LongVector b2 = a.and(0x00FF00FF00000000L);
+        LongVector b3 = a.and(0x00000000FF00FF00L);
+        return b1.or(b2.lanewise(VectorOperators.LSHR, 24))
+                .or(b3.lanewise(VectorOperators.LSHL, 24));
+    }
+}